@@ -0,0 +1,50 @@
+package com.solronline.twittertracker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Recorded tweets and a canned HTML page, so none of the benchmarks needs the network
+ */
+class BenchmarkFixtures {
+
+    /**
+     * @return the raw JSON of the recorded tweets, one per line as in rawtweets.json
+     */
+    static List<String> tweetLines() throws IOException {
+        String content = new String(resource("tweets.jsonl"), StandardCharsets.UTF_8);
+        return new ArrayList<>(Arrays.asList(content.split("\n")));
+    }
+
+    static List<Tweet> tweets() throws IOException {
+        List<Tweet> tweets = new ArrayList<>();
+        for (String line : tweetLines()) {
+            tweets.add(Tweet.decode(line));
+        }
+        return tweets;
+    }
+
+    static byte[] page() throws IOException {
+        return resource("page.html");
+    }
+
+    private static byte[] resource(String name) throws IOException {
+        try (InputStream in = BenchmarkFixtures.class.getClassLoader().getResourceAsStream(name)) {
+            if (in == null) {
+                throw new IOException("Missing benchmark fixture: " + name);
+            }
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                content.write(buffer, 0, read);
+            }
+            return content.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.solronline.twittertracker;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cleaning up of the final URLs before they are written out: the URLs of the recorded tweets,
+ * and already clean ones on their own, which are the common case.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CanonicalizationBenchmark {
+
+    private URLCanonicalizer canonicalizer;
+    private List<String> urls;
+    private List<String> cleanURLs;
+
+    @Setup
+    public void setup() throws Exception {
+        canonicalizer = new URLCanonicalizer(Arrays.asList(URLCanonicalizer.DEFAULT_RULES));
+        urls = new ArrayList<>();
+        for (Tweet tweet : BenchmarkFixtures.tweets()) {
+            urls.addAll(Arrays.asList(tweet.getExpandedURLs()));
+        }
+        cleanURLs = Arrays.asList(
+                "https://lucene.apache.org/solr/",
+                "https://www.example.com/2018/12/06/search-relevance-tuning",
+                "https://example.com/blog/solr-caches?id=42");
+        urls.addAll(cleanURLs);
+    }
+
+    @Benchmark
+    public void canonicalize(Blackhole blackhole) {
+        for (String url : urls) {
+            blackhole.consume(canonicalizer.canonicalize(url));
+        }
+    }
+
+    @Benchmark
+    public void canonicalizeClean(Blackhole blackhole) {
+        for (String url : cleanURLs) {
+            blackhole.consume(canonicalizer.canonicalize(url));
+        }
+    }
+
+    @Benchmark
+    public void canonicalKey(Blackhole blackhole) {
+        for (String url : urls) {
+            blackhole.consume(canonicalizer.key(canonicalizer.canonicalize(url)));
+        }
+    }
+}
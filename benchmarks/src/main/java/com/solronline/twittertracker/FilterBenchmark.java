@@ -0,0 +1,66 @@
+package com.solronline.twittertracker;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-tweet filter chain of {@link TweetProcessor}, the {@link FilterPipeline}: retweet check, excluded handles
+ * and mentions, required and forbidden terms, in the fixed and in the adaptive order.
+ * The forbidden terms list is padded out to a realistically large one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+    @Param({"10", "5000"})
+    public int excludedTermCount;
+
+    @Param({"false", "true"})
+    public boolean adaptiveFilters;
+
+    private List<Tweet> tweets;
+    private FilterPipeline filters;
+    private TermMatcher excludeTerms;
+
+    @Setup
+    public void setup() throws Exception {
+        tweets = BenchmarkFixtures.tweets();
+
+        HashSet<String> excludedHandles = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            excludedHandles.add("handle" + i);
+        }
+        excludedHandles.add("spambot99");
+
+        List<String> terms = new ArrayList<>();
+        terms.add("buy followers");
+        for (int i = 1; i < excludedTermCount; i++) {
+            terms.add("forbidden phrase " + i);
+        }
+        excludeTerms = TermMatcher.compile(terms);
+
+        filters = FilterPipeline.standard(excludedHandles,
+                TermMatcher.compile(Arrays.asList("solr", "lucene")), excludeTerms, adaptiveFilters);
+    }
+
+    @Benchmark
+    public void filterChain(Blackhole blackhole) {
+        for (Tweet tweet : tweets) {
+            blackhole.consume(filters.accept(tweet, new TweetProcessor.TweetOutcome(tweet)));
+        }
+    }
+
+    @Benchmark
+    public void excludedTerms(Blackhole blackhole) {
+        for (Tweet tweet : tweets) {
+            blackhole.consume(excludeTerms.find(tweet.getText()));
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.solronline.twittertracker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * URLResolver's keyword scan over a canned page, which has a long minified line and its only keyword near the end,
+ * alone and with the page fingerprint of the near duplicate detection
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeywordScanBenchmark {
+
+    private byte[] page;
+    private KeywordScanner foundScanner;
+    private KeywordScanner missingScanner;
+
+    @Setup
+    public void setup() throws IOException {
+        page = BenchmarkFixtures.page();
+        foundScanner = new KeywordScanner(Arrays.asList("solr", "lucene"), Long.MAX_VALUE);
+        missingScanner = new KeywordScanner(Arrays.asList("elasticsearch", "vespa"), Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public KeywordScanner.Match keywordFound() throws IOException {
+        return foundScanner.scan(new ByteArrayInputStream(page), StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public KeywordScanner.Match keywordMissing() throws IOException {
+        return missingScanner.scan(new ByteArrayInputStream(page), StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public long keywordMissingWithFingerprint() throws IOException {
+        PageFingerprint fingerprint = new PageFingerprint();
+        missingScanner.scan(new ByteArrayInputStream(page), StandardCharsets.UTF_8, fingerprint);
+        return fingerprint.value();
+    }
+}
@@ -0,0 +1,43 @@
+package com.solronline.twittertracker;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turning stored raw JSON back into tweets, as done for every line when replaying the archive:
+ * the full twitter4j parse against decoding just the fields the processing uses
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+
+    private List<String> rawTweets;
+
+    @Setup
+    public void setup() throws Exception {
+        rawTweets = BenchmarkFixtures.tweetLines();
+    }
+
+    @Benchmark
+    public void createStatus(Blackhole blackhole) throws TwitterException {
+        for (String rawTweet : rawTweets) {
+            blackhole.consume(TwitterObjectFactory.createStatus(rawTweet));
+        }
+    }
+
+    @Benchmark
+    public void decodeProjection(Blackhole blackhole) {
+        for (String rawTweet : rawTweets) {
+            blackhole.consume(Tweet.decode(rawTweet));
+        }
+    }
+}
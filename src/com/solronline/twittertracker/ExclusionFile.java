@@ -0,0 +1,63 @@
+package com.solronline.twittertracker;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * One of the exclusion files (a value per line), reloaded only when it changes on disk
+ */
+public class ExclusionFile {
+
+    private final Path exclusionPath;
+    private FileTime lastModified;
+    private HashSet<String> entries = new HashSet<>();
+    private boolean loaded;
+
+    public ExclusionFile(Path exclusionPath) {
+        this.exclusionPath = exclusionPath;
+    }
+
+    /**
+     * @return true if the entries were (re)loaded, false if the file did not change since the last time
+     */
+    public boolean reloadIfChanged() {
+        FileTime modified = null;
+        try {
+            modified = Files.exists(exclusionPath) ? Files.getLastModifiedTime(exclusionPath) : null;
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+        if (loaded && (modified == null ? lastModified == null : modified.equals(lastModified))) {
+            return false;
+        }
+        loaded = true;
+        lastModified = modified;
+        entries = load(exclusionPath);
+        return true;
+    }
+
+    public HashSet<String> getEntries() {
+        return entries;
+    }
+
+    private static HashSet<String> load(Path exclusionPath) {
+        HashSet<String> results = new HashSet<>();
+        if (Files.notExists(exclusionPath)) {
+            System.out.println("No exclusion file found at: " + exclusionPath.toAbsolutePath());
+            return results;
+        }
+
+        try {
+            List<String> lines = Files.readAllLines(exclusionPath);
+            results.addAll(lines);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+
+        return results;
+    }
+}
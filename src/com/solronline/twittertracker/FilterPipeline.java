@@ -0,0 +1,296 @@
+package com.solronline.twittertracker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The cheap, per tweet, exclusion filters, run as a list of stages that stops at the first one rejecting the tweet.
+ * <p>
+ * Each stage keeps count of how often it rejects, and how long it takes is measured on every
+ * {@value #SAMPLE_EVERY}th tweet. Every so often the stages are reordered by time per rejection, so the filters that
+ * throw out most tweets for the least work run first; which ones those are differs a lot between topics.
+ * The order only decides how fast a tweet is thrown out, not why: when a stage rejects a tweet, the stages before it
+ * in the original order that did not run yet are checked too, and the first of those rejecting it gives the skip reason.
+ * So a tweet always gets the same skip reason, whatever the statistics collected so far.
+ * <p>
+ * Not thread safe; the tweets of a batch are filtered on one thread.
+ */
+public class FilterPipeline {
+
+    private static final int REORDER_EVERY = 256;
+    private static final int SAMPLE_EVERY = 16; //timing every tweet would cost about as much as the cheap stages
+
+    private final List<Stage> stages; //in the original order, which is also the tie breaker
+    private final boolean adaptive;
+    private List<Stage> order;
+    private int sinceReorder;
+    private int sinceSample;
+
+    public FilterPipeline(List<Stage> stages, boolean adaptive) {
+        this.stages = Collections.unmodifiableList(new ArrayList<>(stages));
+        this.adaptive = adaptive;
+        this.order = this.stages;
+    }
+
+    /**
+     * The usual filters: retweets, excluded handles (as author or mention), required and forbidden terms;
+     * adaptive unless the twittertracker.adaptiveFilters property says otherwise
+     * @param includeTerms - tweet text must contain one of these, if not null
+     * @param excludeTerms - tweet text must not contain any of these, if not null
+     */
+    public static FilterPipeline standard(Set<String> excludedHandles, TermMatcher includeTerms, TermMatcher excludeTerms) {
+        return standard(excludedHandles, includeTerms, excludeTerms,
+                Boolean.parseBoolean(System.getProperty("twittertracker.adaptiveFilters", "true")));
+    }
+
+    public static FilterPipeline standard(Set<String> excludedHandles, TermMatcher includeTerms, TermMatcher excludeTerms,
+                                          boolean adaptive) {
+        List<Stage> stages = new ArrayList<>(Arrays.asList(new RetweetStage(), new HandleStage(excludedHandles),
+                new MentionStage(excludedHandles)));
+        if (includeTerms != null) {
+            stages.add(new RequiredTermsStage(includeTerms));
+        }
+        if (excludeTerms != null) {
+            stages.add(new ForbiddenTermsStage(excludeTerms));
+        }
+        return new FilterPipeline(stages, adaptive);
+    }
+
+    /**
+     * Carries over the counts (and so the order) of the stages with the same names, e.g. after the exclusions reloaded
+     */
+    public FilterPipeline withStatisticsOf(FilterPipeline previous) {
+        if (previous != null) {
+            for (Stage stage : stages) {
+                for (Stage previousStage : previous.stages) {
+                    if (stage.name.equals(previousStage.name)) {
+                        stage.evaluations = previousStage.evaluations;
+                        stage.rejections = previousStage.rejections;
+                        stage.samples = previousStage.samples;
+                        stage.sampledNanos = previousStage.sampledNanos;
+                    }
+                }
+            }
+            reorder();
+        }
+        return this;
+    }
+
+    /**
+     * Registers the rejection rate, average cost and current position of each stage
+     */
+    public void registerMetrics(RunMetrics metrics) {
+        for (Stage stage : stages) {
+            metrics.gauge("twittertracker_filter_reject_ratio", "stage", stage.name, stage::getRejectRatio);
+            metrics.gauge("twittertracker_filter_cost", "stage", stage.name, stage::getAverageCost);
+            metrics.gauge("twittertracker_filter_position", "stage", stage.name, () -> order.indexOf(stage));
+        }
+    }
+
+    /**
+     * @return true if the tweet passed all the stages, false if it was marked as skipped in the outcome
+     */
+    public boolean accept(Tweet tweet, TweetProcessor.TweetOutcome outcome) {
+        if (adaptive && ++sinceReorder >= REORDER_EVERY) {
+            reorder();
+        }
+        boolean sample = ++sinceSample >= SAMPLE_EVERY;
+        if (sample) {
+            sinceSample = 0;
+        }
+        for (int position = 0; position < order.size(); position++) {
+            Stage stage = order.get(position);
+            stage.evaluations++;
+            boolean rejects;
+            if (sample) {
+                long start = System.nanoTime();
+                rejects = stage.rejects(tweet, outcome);
+                stage.sampledNanos += System.nanoTime() - start;
+                stage.samples++;
+            } else {
+                rejects = stage.rejects(tweet, outcome);
+            }
+            if (rejects) {
+                stage.rejections++;
+                if (order != stages) {
+                    rejectInOriginalOrder(tweet, outcome, stage, position);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gives the skip reason of the first stage in the original order rejecting the tweet, rather than the rejecting
+     * stage that happened to run first. Only the earlier stages that did not run yet are checked, and only for the
+     * rejected tweets; those checks do not count in the statistics, which stay about the order actually run.
+     */
+    private void rejectInOriginalOrder(Tweet tweet, TweetProcessor.TweetOutcome outcome, Stage rejecting, int position) {
+        for (Stage stage : stages) {
+            if (stage == rejecting) {
+                return;
+            }
+            if (order.indexOf(stage) > position && stage.rejects(tweet, outcome)) {
+                return; //the outcome now has this stage's reason
+            }
+        }
+    }
+
+    public List<Stage> getOrder() {
+        return order;
+    }
+
+    private void reorder() {
+        sinceReorder = 0;
+        if (!adaptive) {
+            return;
+        }
+        List<Stage> newOrder = new ArrayList<>(stages);
+        newOrder.sort(Comparator.comparingDouble(Stage::getCostPerRejection)); //stable, so ties keep the original order
+        if (!newOrder.equals(order)) {
+            System.out.println("Filter order now: " + newOrder);
+        }
+        order = newOrder;
+    }
+
+    /**
+     * One filter. Its statistics are updated by the pipeline.
+     */
+    public abstract static class Stage {
+        final String name;
+        long evaluations;
+        long rejections;
+        long samples;
+        long sampledNanos;
+
+        protected Stage(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return true if the tweet is to be skipped, after saying why in the outcome
+         */
+        protected abstract boolean rejects(Tweet tweet, TweetProcessor.TweetOutcome outcome);
+
+        public String getName() { return name; }
+
+        /**
+         * Rejections per evaluation, starting from a neutral 1/2 before any counts
+         */
+        public double getRejectRatio() {
+            return (rejections + 1.0) / (evaluations + 2.0);
+        }
+
+        /**
+         * Nanoseconds per evaluation, as measured on the sampled tweets; all stages look alike before any samples
+         */
+        public double getAverageCost() {
+            return (sampledNanos + 1.0) / (samples + 1.0);
+        }
+
+        double getCostPerRejection() {
+            return getAverageCost() / getRejectRatio();
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static class RetweetStage extends Stage {
+        RetweetStage() {
+            super("retweet");
+        }
+
+        @Override
+        protected boolean rejects(Tweet tweet, TweetProcessor.TweetOutcome outcome) {
+            if (tweet.isRetweet()) {
+                outcome.skip("retweet", "retweet");
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static class HandleStage extends Stage {
+        private final Set<String> excludedHandles;
+
+        HandleStage(Set<String> excludedHandles) {
+            super("handle");
+            this.excludedHandles = excludedHandles;
+        }
+
+        @Override
+        protected boolean rejects(Tweet tweet, TweetProcessor.TweetOutcome outcome) {
+            String screenName = tweet.getScreenName();
+            if (excludedHandles.contains(screenName.toLowerCase())) {
+                outcome.skip("handle", "exclude due to handle '%s'", screenName);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static class MentionStage extends Stage {
+        private final Set<String> excludedHandles;
+
+        MentionStage(Set<String> excludedHandles) {
+            super("mention");
+            this.excludedHandles = excludedHandles;
+        }
+
+        @Override
+        protected boolean rejects(Tweet tweet, TweetProcessor.TweetOutcome outcome) {
+            for (String mentionName : tweet.getMentionScreenNames()) {
+                if (excludedHandles.contains(mentionName.toLowerCase())) {
+                    outcome.skip("mention", "exclude due to mention '%s'", mentionName);
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class RequiredTermsStage extends Stage {
+        private final TermMatcher includeTerms;
+
+        RequiredTermsStage(TermMatcher includeTerms) {
+            super("missing_terms");
+            this.includeTerms = includeTerms;
+        }
+
+        @Override
+        protected boolean rejects(Tweet tweet, TweetProcessor.TweetOutcome outcome) {
+            if (!includeTerms.matches(tweet.getText())) {
+                outcome.skip("missing_terms", "exclude due to missing required terms");
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static class ForbiddenTermsStage extends Stage {
+        private final TermMatcher excludeTerms;
+
+        ForbiddenTermsStage(TermMatcher excludeTerms) {
+            super("forbidden_term");
+            this.excludeTerms = excludeTerms;
+        }
+
+        @Override
+        protected boolean rejects(Tweet tweet, TweetProcessor.TweetOutcome outcome) {
+            String forbiddenTerm = excludeTerms.find(tweet.getText());
+            if (forbiddenTerm != null) {
+                outcome.skip("forbidden_term", "exclude due to forbidded term: '%s'", forbiddenTerm);
+                return true;
+            }
+            return false;
+        }
+    }
+}
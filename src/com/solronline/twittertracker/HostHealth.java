@@ -0,0 +1,69 @@
+package com.solronline.twittertracker;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Circuit breaker per host: once a host has failed (timed out, refused, errored) too many times in a row,
+ * it is skipped for a cool-down period instead of making every link through it wait for its timeouts.
+ * After the cool-down the host is tried again, but its failures still count from the threshold,
+ * so a single further failure opens the circuit again; one success closes it.
+ */
+public class HostHealth {
+
+    private final int failureThreshold;
+    private final long cooldownMillis;
+    private final ConcurrentHashMap<String, HostState> hosts = new ConcurrentHashMap<>();
+
+    public HostHealth(int failureThreshold, long cooldownMillis) {
+        this.failureThreshold = failureThreshold;
+        this.cooldownMillis = cooldownMillis;
+    }
+
+    public static HostHealth fromSystemProperties() {
+        return new HostHealth(
+                Integer.getInteger("twittertracker.hostFailureThreshold", 5),
+                Long.getLong("twittertracker.hostCooldownMinutes", 30) * 60_000L);
+    }
+
+    /**
+     * @return false if the host is known to be bad and should not be tried right now
+     */
+    public boolean allows(String hostName) {
+        HostState state = hosts.get(hostName);
+        if (state == null) {
+            return true;
+        }
+        synchronized (state) {
+            return state.openUntil <= System.currentTimeMillis();
+        }
+    }
+
+    public void recordSuccess(String hostName) {
+        HostState state = hosts.get(hostName);
+        if (state != null) {
+            synchronized (state) {
+                state.consecutiveFailures = 0;
+                state.openUntil = 0;
+            }
+        }
+    }
+
+    public void recordFailure(String hostName) {
+        HostState state = hosts.computeIfAbsent(hostName, host -> new HostState());
+        synchronized (state) {
+            state.consecutiveFailures++;
+            if (state.consecutiveFailures >= failureThreshold) {
+                if (state.openUntil <= System.currentTimeMillis()) {
+                    System.out.printf("Host '%s' failed %d times in a row, skipping it for %d minutes\n",
+                            hostName, state.consecutiveFailures, cooldownMillis / 60_000L);
+                }
+                state.openUntil = System.currentTimeMillis() + cooldownMillis;
+            }
+        }
+    }
+
+    private static class HostState {
+        int consecutiveFailures;
+        long openUntil;
+    }
+}
@@ -0,0 +1,28 @@
+package com.solronline.twittertracker;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Caps how many requests may be talking to the same host at the same time, so parallel workers stay polite.
+ */
+public class HostPermits {
+
+    private final int maxPerHost;
+    private final ConcurrentHashMap<String, Semaphore> permits = new ConcurrentHashMap<>();
+
+    public HostPermits(int maxPerHost) {
+        this.maxPerHost = maxPerHost;
+    }
+
+    /**
+     * Waits until the host is free; every acquire must be paired with a release
+     */
+    public void acquire(String hostName) {
+        permits.computeIfAbsent(hostName, host -> new Semaphore(maxPerHost)).acquireUninterruptibly();
+    }
+
+    public void release(String hostName) {
+        permits.get(hostName).release();
+    }
+}
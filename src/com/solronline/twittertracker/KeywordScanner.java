@@ -0,0 +1,177 @@
+package com.solronline.twittertracker;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Locale;
+
+/**
+ * Looks for keywords in a fetched page without reading it line by line.
+ * The decoded text goes through one fixed buffer; the end of the previous buffer is carried over,
+ * so a keyword split between two reads is still found and still has some text around it to show.
+ * Scanning stops at the first keyword, or once maxBytes of the page have been read.
+ * The text can be fed to a {@link PageFingerprint} on the way, which then reads the page up to maxBytes.
+ * A deadline can be given too, so a server that trickles out a page cannot keep the scan going for long.
+ */
+public class KeywordScanner {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int CONTEXT = 40; //characters shown on each side of a found keyword
+
+    private final TermMatcher keywords;
+    private final long maxBytes;
+    private final int carryOver;
+
+    public KeywordScanner(Collection<String> keywords, long maxBytes) {
+        this.keywords = TermMatcher.compile(keywords);
+        this.maxBytes = maxBytes;
+        this.carryOver = (this.keywords == null) ? 0 : this.keywords.getMaxTermLength() + CONTEXT;
+    }
+
+    /**
+     * @return the first keyword found, or null if none was found within the byte limit
+     */
+    public Match scan(InputStream content, Charset charset) throws IOException {
+        return scan(content, charset, null);
+    }
+
+    /**
+     * Same, but also feeds the text read to the fingerprint; then the page is read up to the byte limit,
+     * not just up to the keyword
+     * @param fingerprint - may be null
+     */
+    public Match scan(InputStream content, Charset charset, PageFingerprint fingerprint) throws IOException {
+        return scan(content, charset, fingerprint, Long.MAX_VALUE);
+    }
+
+    /**
+     * Same, but gives up once the deadline has passed
+     * @param deadline - in {@link System#currentTimeMillis()} time
+     * @throws IOException also if the deadline passes before the scan is done
+     */
+    public Match scan(InputStream content, Charset charset, PageFingerprint fingerprint, long deadline) throws IOException {
+        if (keywords == null && fingerprint == null) {
+            return null;
+        }
+        Reader reader = new InputStreamReader(new LimitedInputStream(content, maxBytes, deadline), charset);
+        char[] buffer = new char[carryOver + BUFFER_SIZE];
+        Match match = null;
+        int state = 0;
+        int length = 0; //characters in the buffer, carried over ones included
+        int read;
+        while ((read = reader.read(buffer, length, buffer.length - length)) != -1) {
+            int scanFrom = length;
+            length += read;
+            if (fingerprint != null) {
+                fingerprint.update(buffer, scanFrom, length);
+            }
+            for (int pos = scanFrom; match == null && keywords != null && pos < length; pos++) {
+                state = keywords.next(state, buffer[pos]);
+                int matchLength = keywords.matchLength(state);
+                if (matchLength > 0) {
+                    //top up the text after the keyword, if the buffer ends right there
+                    int after;
+                    while (length - pos - 1 < CONTEXT && length < buffer.length
+                            && (after = reader.read(buffer, length, Math.min(CONTEXT, buffer.length - length))) != -1) {
+                        if (fingerprint != null) {
+                            fingerprint.update(buffer, length, length + after);
+                        }
+                        length += after;
+                    }
+                    match = new Match(buffer, pos + 1 - matchLength, pos + 1, length);
+                    if (fingerprint == null) {
+                        return match;
+                    }
+                }
+            }
+            if (match != null) {
+                length = 0; //only the fingerprint still reads, it needs nothing carried over
+            } else if (length == buffer.length) {
+                System.arraycopy(buffer, length - carryOver, buffer, 0, carryOver);
+                length = carryOver;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * @return the charset named in the Content-Type header, or UTF-8 if there is none we know
+     */
+    public static Charset charsetOf(String contentType) {
+        if (contentType != null) {
+            for (String parameter : contentType.split(";")) {
+                parameter = parameter.trim();
+                if (parameter.toLowerCase(Locale.ROOT).startsWith("charset=")) {
+                    String name = parameter.substring("charset=".length()).replace("\"", "").trim();
+                    try {
+                        return Charset.forName(name);
+                    } catch (IllegalArgumentException e) {
+                        System.out.printf("    Unknown charset '%s', using UTF-8\n", name);
+                    }
+                }
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * A found keyword, as written in the page, with the text around it
+     */
+    public static class Match {
+        private final String keyword;
+        private final String annotatedText;
+
+        Match(char[] buffer, int start, int end, int length) {
+            int contextStart = Math.max(0, start - CONTEXT);
+            int contextEnd = Math.min(length, end + CONTEXT);
+            this.keyword = new String(buffer, start, end - start);
+            this.annotatedText = new String(buffer, contextStart, start - contextStart)
+                    + "[[[" + keyword + "]]]"
+                    + new String(buffer, end, contextEnd - end);
+        }
+
+        public String getKeyword() { return keyword; }
+
+        public String getAnnotatedText() { return annotatedText; }
+    }
+
+    /**
+     * Pretends the stream ends after maxBytes, and fails once the deadline has passed.
+     * The deadline is checked before every read, so a single read can still overrun it by up to the read timeout.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+        private final long deadline;
+
+        LimitedInputStream(InputStream in, long maxBytes, long deadline) {
+            super(in);
+            this.remaining = maxBytes;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            checkDeadline();
+            int b = super.read();
+            if (b != -1) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            checkDeadline();
+            int count = super.read(b, off, (int) Math.min(len, remaining));
+            if (count > 0) remaining -= count;
+            return count;
+        }
+
+        private void checkDeadline() throws IOException {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("Deadline passed while reading the page");
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.solronline.twittertracker;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolException;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultRedirectStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Resolves short links to their final location, many at a time.
+ * The work is almost all waiting on the network, so a fixed pool of worker threads runs the redirect chains in parallel,
+ * while a semaphore per host keeps us from hammering any single shortener.
+ * Resolutions (including failures) go through the shared {@link ResolutionCache}, if one is given.
+ * <p>
+ * Every request has connect, read and overall deadlines and a bounded number of redirects, so one tarpit host
+ * cannot hang a run; hosts that keep failing are skipped altogether for a while (see {@link HostHealth}).
+ * Connections are pooled and kept alive per route. That pays off on the redirect hops (mostly shorteners);
+ * the connection to the final page is dropped rather than reading its body.
+ */
+public class LinkResolver implements Closeable {
+
+    private final CloseableHttpClient httpclient;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService deadlines;
+    private final HostPermits hostPermits;
+    private final HostHealth hostHealth;
+    private final ResolutionCache cache;
+    private final RunMetrics metrics;
+    private final long requestDeadlineMillis;
+
+    /**
+     * @param cache - where to look up and store the resolutions, may be null
+     * @param metrics - gets the time taken by each resolution, per initial host
+     */
+    public LinkResolver(Settings settings, HostHealth hostHealth, ResolutionCache cache, RunMetrics metrics) {
+        this.hostPermits = new HostPermits(settings.threadsPerHost);
+        this.hostHealth = hostHealth;
+        this.cache = cache;
+        this.metrics = metrics;
+        this.requestDeadlineMillis = settings.requestDeadlineMillis;
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(settings.threads * 2);
+        connectionManager.setDefaultMaxPerRoute(settings.threadsPerHost);
+        this.httpclient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(RequestConfig.custom()
+                        .setConnectTimeout(settings.connectTimeoutMillis)
+                        .setConnectionRequestTimeout(settings.connectTimeoutMillis)
+                        .setSocketTimeout(settings.readTimeoutMillis)
+                        .setMaxRedirects(settings.maxRedirects)
+                        .build())
+                .setRedirectStrategy(new HealthCheckingRedirectStrategy())
+                .evictIdleConnections(1, TimeUnit.MINUTES)
+                .build();
+        this.executor = Executors.newFixedThreadPool(settings.threads, runnable -> {
+            Thread thread = new Thread(runnable, "link-resolver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.deadlines = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "link-resolver-deadlines");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts resolving the URL in the background
+     */
+    public Future<Resolution> submit(String initialURL) {
+        return executor.submit(() -> resolve(initialURL));
+    }
+
+    /**
+     * Follows the redirects of a single URL on the calling thread
+     */
+    public Resolution resolve(String initialURL) {
+        if (cache != null) {
+            ResolutionCache.Entry cached = cache.get(initialURL);
+            if (cached != null) {
+                return Resolution.fromCache(cached);
+            }
+        }
+
+        Resolution resolution = fetch(initialURL);
+        if (cache != null && resolution.getSkippedHost() == null) {
+            cache.put(resolution.toCacheEntry());
+        }
+        return resolution;
+    }
+
+    private Resolution fetch(String initialURL) {
+        String hostName;
+        try {
+            hostName = URIUtils.extractHost(URI.create(initialURL)).getHostName();
+        } catch (IllegalArgumentException | NullPointerException e) {
+            return Resolution.failed(initialURL, e);
+        }
+        if (!hostHealth.allows(hostName)) {
+            return Resolution.skipped(initialURL, hostName);
+        }
+
+        hostPermits.acquire(hostName);
+        long start = System.nanoTime();
+        HttpClientContext context = HttpClientContext.create();
+        HttpGet httpget = new HttpGet(initialURL);
+        ScheduledFuture<?> deadline = deadlines.schedule(httpget::abort, requestDeadlineMillis, TimeUnit.MILLISECONDS);
+        try (CloseableHttpResponse response = httpclient.execute(httpget, context)) {
+            HttpHost target = context.getTargetHost();
+            List<URI> redirectLocations = context.getRedirectLocations();
+            URI location = URIUtils.resolve(httpget.getURI(), target, redirectLocations);
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode >= 500) {
+                hostHealth.recordFailure(target.getHostName());
+            } else {
+                hostHealth.recordSuccess(target.getHostName());
+            }
+            return Resolution.resolved(initialURL, location,
+                    (redirectLocations == null) ? Collections.emptyList() : redirectLocations,
+                    statusCode);
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            if (e.getCause() instanceof UnhealthyHostException) {
+                return Resolution.skipped(initialURL, ((UnhealthyHostException) e.getCause()).hostName);
+            }
+            //blame the host we were talking to when it went wrong, which may be further down the redirects
+            HttpHost target = context.getTargetHost();
+            hostHealth.recordFailure((target == null) ? hostName : target.getHostName());
+            return Resolution.failed(initialURL, e);
+        } finally {
+            deadline.cancel(false);
+            hostPermits.release(hostName);
+            metrics.observeSince("twittertracker_url_resolution_seconds", "host", metrics.hostLabel(hostName), start);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        deadlines.shutdownNow();
+        httpclient.close();
+    }
+
+    /**
+     * Size, timeouts and limits of the resolution client, by default from the system properties
+     */
+    public static class Settings {
+        int threads = Integer.getInteger("twittertracker.resolverThreads", 16);
+        int threadsPerHost = Integer.getInteger("twittertracker.resolverThreadsPerHost", 4);
+        int connectTimeoutMillis = Integer.getInteger("twittertracker.connectTimeoutMillis", 5000);
+        int readTimeoutMillis = Integer.getInteger("twittertracker.readTimeoutMillis", 10000);
+        long requestDeadlineMillis = Long.getLong("twittertracker.requestDeadlineMillis", 30000);
+        int maxRedirects = Integer.getInteger("twittertracker.maxRedirects", 10);
+
+        public int getThreads() { return threads; }
+
+        public int getThreadsPerHost() { return threadsPerHost; }
+
+        public int getConnectTimeoutMillis() { return connectTimeoutMillis; }
+
+        public int getReadTimeoutMillis() { return readTimeoutMillis; }
+
+        public long getRequestDeadlineMillis() { return requestDeadlineMillis; }
+
+        public int getMaxRedirects() { return maxRedirects; }
+    }
+
+    /**
+     * Refuses to follow a redirect to a host whose circuit is open
+     */
+    private class HealthCheckingRedirectStrategy extends DefaultRedirectStrategy {
+        @Override
+        public URI getLocationURI(HttpRequest request, HttpResponse response, HttpContext context) throws ProtocolException {
+            URI location = super.getLocationURI(request, response, context);
+            String hostName = location.getHost();
+            if (hostName != null && !hostHealth.allows(hostName)) {
+                throw new UnhealthyHostException(hostName);
+            }
+            return location;
+        }
+    }
+
+    private static class UnhealthyHostException extends ProtocolException {
+        private static final long serialVersionUID = 1L;
+
+        final String hostName;
+
+        UnhealthyHostException(String hostName) {
+            super("Host is failing, not trying it for now: " + hostName);
+            this.hostName = hostName;
+        }
+    }
+
+    /**
+     * Outcome of following one URL: either the final location with the redirects on the way, or the error we hit,
+     * or the failing host that made us give up without trying.
+     */
+    public static class Resolution {
+        private final String initialURL;
+        private final URI finalURI;
+        private final List<URI> redirects;
+        private final int statusCode;
+        private final Exception error;
+        private final String skippedHost;
+
+        private Resolution(String initialURL, URI finalURI, List<URI> redirects, int statusCode, Exception error, String skippedHost) {
+            this.initialURL = initialURL;
+            this.finalURI = finalURI;
+            this.redirects = redirects;
+            this.statusCode = statusCode;
+            this.error = error;
+            this.skippedHost = skippedHost;
+        }
+
+        static Resolution resolved(String initialURL, URI finalURI, List<URI> redirects, int statusCode) {
+            return new Resolution(initialURL, finalURI, redirects, statusCode, null, null);
+        }
+
+        static Resolution failed(String initialURL, Exception error) {
+            return new Resolution(initialURL, null, Collections.emptyList(), -1, error, null);
+        }
+
+        static Resolution skipped(String initialURL, String failingHost) {
+            return new Resolution(initialURL, null, Collections.emptyList(), -1, null, failingHost);
+        }
+
+        static Resolution fromCache(ResolutionCache.Entry entry) {
+            if (entry.isFailure()) {
+                return failed(entry.getInitialURL(), new IOException("cached failure: " + entry.getError()));
+            }
+            List<URI> redirects = new ArrayList<>(entry.getRedirects().size());
+            for (String redirect : entry.getRedirects()) {
+                redirects.add(URI.create(redirect));
+            }
+            return resolved(entry.getInitialURL(), URI.create(entry.getFinalURL()), redirects, entry.getStatusCode());
+        }
+
+        ResolutionCache.Entry toCacheEntry() {
+            if (!isResolved()) {
+                return ResolutionCache.Entry.failed(initialURL, error.toString());
+            }
+            List<String> redirectURLs = new ArrayList<>(redirects.size());
+            for (URI redirect : redirects) {
+                redirectURLs.add(redirect.toASCIIString());
+            }
+            return ResolutionCache.Entry.resolved(initialURL, finalURI.toASCIIString(), redirectURLs, statusCode);
+        }
+
+        public String getInitialURL() { return initialURL; }
+
+        public URI getFinalURI() { return finalURI; }
+
+        public List<URI> getRedirects() { return redirects; }
+
+        public int getStatusCode() { return statusCode; }
+
+        public Exception getError() { return error; }
+
+        /**
+         * @return the failing host because of which this URL was not even tried, or null if it was tried
+         */
+        public String getSkippedHost() { return skippedHost; }
+
+        public boolean isResolved() { return error == null && skippedHost == null; }
+    }
+}
@@ -0,0 +1,368 @@
+package com.solronline.twittertracker;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Writes the accepted and skipped tweet files on its own thread, so the processing never waits on the disk.
+ * <p>
+ * Records come in over a bounded queue (a full queue makes the processing wait, rather than use up the memory)
+ * and whatever has queued up is formatted and written as one group, with one flush.
+ * Adding records is thread safe. Optionally, each file gets a JSON lines twin with the same records.
+ * {@link #sync()} returns once everything added before it is on disk, which is when the lastID may move on.
+ */
+public class OutputWriter implements Closeable {
+
+    /** Thread safe, unlike SimpleDateFormat */
+    static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private static final Record STOP = new Record();
+
+    private final BlockingQueue<Record> queue;
+    private final Thread thread;
+    private final RunMetrics metrics;
+    private final FileOutputStream acceptedFile;
+    private final FileOutputStream skippedFile;
+    private final FileOutputStream acceptedJSONFile;
+    private final FileOutputStream skippedJSONFile;
+    private final Writer acceptedWriter;
+    private final Writer skippedWriter;
+    private final Writer acceptedJSONWriter;
+    private final Writer skippedJSONWriter;
+    private final StringBuilder line = new StringBuilder(512);
+    private volatile IOException failure;
+    private long formattedSecond = Long.MIN_VALUE;
+    private String formattedTime;
+    private boolean closed;
+
+    /**
+     * @param json - also write tweets-accepted.jsonl and tweets-skipped.jsonl
+     */
+    public OutputWriter(Path workingPath, boolean json, int queueSize, RunMetrics metrics) throws IOException {
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.metrics = metrics;
+        this.acceptedFile = new FileOutputStream(workingPath.resolve("tweets-accepted.txt").toFile(), true);
+        this.skippedFile = new FileOutputStream(workingPath.resolve("tweets-skipped.txt").toFile(), true);
+        this.acceptedWriter = new BufferedWriter(new OutputStreamWriter(acceptedFile, StandardCharsets.UTF_8));
+        this.skippedWriter = new BufferedWriter(new OutputStreamWriter(skippedFile, StandardCharsets.UTF_8));
+        if (json) {
+            this.acceptedJSONFile = new FileOutputStream(workingPath.resolve("tweets-accepted.jsonl").toFile(), true);
+            this.skippedJSONFile = new FileOutputStream(workingPath.resolve("tweets-skipped.jsonl").toFile(), true);
+            this.acceptedJSONWriter = new BufferedWriter(new OutputStreamWriter(acceptedJSONFile, StandardCharsets.UTF_8));
+            this.skippedJSONWriter = new BufferedWriter(new OutputStreamWriter(skippedJSONFile, StandardCharsets.UTF_8));
+        } else {
+            this.acceptedJSONFile = null;
+            this.skippedJSONFile = null;
+            this.acceptedJSONWriter = null;
+            this.skippedJSONWriter = null;
+        }
+        metrics.gauge("twittertracker_output_queue_depth", null, null, queue::size);
+
+        this.thread = new Thread(this::run, "output-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Opens the writer in the working directory, configured from the system properties
+     */
+    public static OutputWriter open(Path workingPath, RunMetrics metrics) throws IOException {
+        return new OutputWriter(workingPath,
+                Boolean.getBoolean("twittertracker.jsonOutput"),
+                Integer.getInteger("twittertracker.outputQueueSize", 10000),
+                metrics);
+    }
+
+    public void accepted(long time, String url, long tweetID, String screenName, String text) throws IOException {
+        Record record = new Record();
+        record.time = time;
+        record.url = url;
+        record.tweetID = tweetID;
+        record.screenName = screenName;
+        record.text = text;
+        add(record);
+    }
+
+    /**
+     * @param reason - short name of the filter
+     * @param format - the message, with a %s for each of the params
+     */
+    public void skipped(long time, long tweetID, String reason, String format, String[] params, String text) throws IOException {
+        Record record = new Record();
+        record.time = time;
+        record.tweetID = tweetID;
+        record.reason = reason;
+        record.format = format;
+        record.params = params;
+        record.text = text;
+        add(record);
+    }
+
+    /**
+     * Waits until everything added so far is written and forced to the disk
+     * @throws IOException if anything could not be written, now or earlier
+     */
+    public void sync() throws IOException {
+        Record barrier = new Record();
+        barrier.synced = new CountDownLatch(1);
+        add(barrier);
+        try {
+            barrier.synced.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the output to be written");
+        }
+        checkFailure();
+    }
+
+    /**
+     * Syncs and stops the writer thread
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            sync();
+        } finally {
+            put(STOP);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            closeAll(acceptedWriter, skippedWriter, acceptedJSONWriter, skippedJSONWriter);
+        }
+    }
+
+    private void add(Record record) throws IOException {
+        checkFailure();
+        if (closed && record.synced == null) {
+            throw new IOException("Output writer is closed");
+        }
+        put(record);
+    }
+
+    private void put(Record record) throws InterruptedIOException {
+        try {
+            queue.put(record);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing output");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Could not write the tweet files", failure);
+        }
+    }
+
+    private void run() {
+        List<Record> group = new ArrayList<>();
+        while (true) {
+            try {
+                group.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(group);
+            long start = System.nanoTime();
+            boolean stop = false;
+            for (Record record : group) {
+                if (record == STOP) {
+                    stop = true;
+                    continue;
+                }
+                try {
+                    if (failure == null) { //otherwise drop the records, the failure is reported to whoever syncs
+                        write(record);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace(System.err);
+                    failure = (e instanceof IOException) ? (IOException) e : new IOException(e);
+                } finally {
+                    if (record.synced != null) {
+                        record.synced.countDown();
+                    }
+                }
+            }
+            try {
+                if (failure == null) {
+                    flushAll(acceptedWriter, skippedWriter, acceptedJSONWriter, skippedJSONWriter);
+                }
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+                failure = e;
+            }
+            metrics.observeSince("twittertracker_output_commit_seconds", null, null, start);
+            group.clear();
+            if (stop) {
+                return;
+            }
+        }
+    }
+
+    private void write(Record record) throws IOException {
+        if (record.synced != null) {
+            flushAll(acceptedWriter, skippedWriter, acceptedJSONWriter, skippedJSONWriter);
+            acceptedFile.getChannel().force(false);
+            skippedFile.getChannel().force(false);
+            if (acceptedJSONFile != null) {
+                acceptedJSONFile.getChannel().force(false);
+                skippedJSONFile.getChannel().force(false);
+            }
+        } else if (record.url != null) {
+            // time url \t tweetID \t @screenName \t text
+            line.setLength(0);
+            line.append(formatTime(record.time)).append(' ').append(record.url).append('\t')
+                    .append(record.tweetID).append("\t@").append(record.screenName).append('\t');
+            appendOneLine(line, record.text);
+            acceptedWriter.append(line).append('\n');
+            if (acceptedJSONWriter != null) {
+                line.setLength(0);
+                line.append("{\"time\":\"").append(formatTime(record.time)).append("\",\"url\":");
+                appendJSONString(line, record.url);
+                line.append(",\"tweetID\":").append(record.tweetID).append(",\"user\":");
+                appendJSONString(line, record.screenName);
+                line.append(",\"text\":");
+                appendJSONString(line, record.text);
+                acceptedJSONWriter.append(line).append("}\n");
+            }
+        } else {
+            // time tweetID:message      text
+            line.setLength(0);
+            line.append(formatTime(record.time)).append(' ').append(record.tweetID).append(':');
+            appendMessage(line, record.format, record.params);
+            line.append("      ");
+            appendOneLine(line, record.text);
+            skippedWriter.append(line).append('\n');
+            if (skippedJSONWriter != null) {
+                line.setLength(0);
+                line.append("{\"time\":\"").append(formatTime(record.time)).append("\",\"tweetID\":").append(record.tweetID)
+                        .append(",\"reason\":");
+                appendJSONString(line, record.reason);
+                StringBuilder message = new StringBuilder();
+                appendMessage(message, record.format, record.params);
+                line.append(",\"message\":");
+                appendJSONString(line, message);
+                line.append(",\"text\":");
+                appendJSONString(line, record.text);
+                skippedJSONWriter.append(line).append("}\n");
+            }
+        }
+    }
+
+    /**
+     * Only the writer thread formats, and records mostly arrive within the same second, so the last one is reused
+     */
+    private String formatTime(long time) {
+        long second = Math.floorDiv(time, 1000);
+        if (second != formattedSecond) {
+            formattedSecond = second;
+            formattedTime = DATE_FORMAT.format(Instant.ofEpochSecond(second));
+        }
+        return formattedTime;
+    }
+
+    /**
+     * Replaces each %s in turn, which is all the skip messages use; anything fancier goes to String.format
+     */
+    private static void appendMessage(StringBuilder out, String format, String[] params) {
+        int param = 0;
+        for (int i = 0; i < format.length(); i++) {
+            char c = format.charAt(i);
+            if (c != '%') {
+                out.append(c);
+            } else if (i + 1 < format.length() && format.charAt(i + 1) == 's' && param < params.length) {
+                out.append(params[param++]);
+                i++;
+            } else {
+                out.append(String.format(format.substring(i), (Object[]) Arrays.copyOfRange(params, param, params.length)));
+                return;
+            }
+        }
+    }
+
+    private static void appendOneLine(StringBuilder out, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                out.append("    ");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private static void appendJSONString(StringBuilder out, CharSequence value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else if (c == '\r') {
+                out.append("\\r");
+            } else if (c == '\t') {
+                out.append("\\t");
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private static void flushAll(Writer... writers) throws IOException {
+        for (Writer writer : writers) {
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+    }
+
+    private static void closeAll(Writer... writers) throws IOException {
+        IOException first = null;
+        for (Writer writer : writers) {
+            if (writer == null) continue;
+            try {
+                writer.close();
+            } catch (IOException e) {
+                if (first == null) first = e;
+            }
+        }
+        if (first != null) {
+            throw first;
+        }
+    }
+
+    /**
+     * An accepted URL (has a url), a skipped tweet (has a format), or a sync barrier (has a latch)
+     */
+    private static class Record {
+        long time;
+        long tweetID;
+        String url;
+        String screenName;
+        String reason;
+        String format;
+        String[] params;
+        String text;
+        CountDownLatch synced;
+    }
+}
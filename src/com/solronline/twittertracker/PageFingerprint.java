@@ -0,0 +1,128 @@
+package com.solronline.twittertracker;
+
+/**
+ * SimHash of the text of a page: every run of three words is hashed, and each bit of the fingerprint is the
+ * majority vote of that bit over all the runs. Pages that share most of their text (the same article on a mirror,
+ * as an AMP page or reposted) get fingerprints that differ in only a few bits, whatever markup is around it.
+ * <p>
+ * The text is fed in as it is read, in any size of pieces. Tags are left out, and so is everything inside
+ * script and style elements, so navigation and tracking code count for little.
+ */
+public class PageFingerprint {
+
+    /** Fewer word runs than this do not tell pages apart, e.g. error or consent pages */
+    static final int MIN_SHINGLES = 64;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final int MAX_TAG_NAME = 8;
+
+    private final int[] votes = new int[64];
+    private int shingles;
+
+    private long wordHash = FNV_OFFSET;
+    private int wordLength;
+    private long previousWord;
+    private long wordBeforeThat;
+    private int words;
+
+    private boolean inTag;
+    private boolean inEntity;
+    private boolean inScript;
+    private final StringBuilder tagName = new StringBuilder(MAX_TAG_NAME);
+
+    public void update(char[] text, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char c = text[i];
+            if (inTag) {
+                if (c == '>') {
+                    endTag();
+                } else if (tagName.length() < MAX_TAG_NAME && !Character.isWhitespace(c)
+                        && (tagName.length() == 0 || c != '/')) {
+                    tagName.append(Character.toLowerCase(c));
+                } else if (tagName.length() < MAX_TAG_NAME) {
+                    tagName.setLength(MAX_TAG_NAME); //name is complete, ignore the attributes
+                }
+            } else if (c == '<') {
+                endWord();
+                inTag = true;
+                inEntity = false;
+                tagName.setLength(0);
+            } else if (inScript) {
+                //not text
+            } else if (inEntity) {
+                if (c == ';' || !Character.isLetterOrDigit(c) && c != '#') {
+                    inEntity = false;
+                }
+            } else if (Character.isLetterOrDigit(c)) {
+                wordHash = (wordHash ^ Character.toLowerCase(c)) * FNV_PRIME;
+                wordLength++;
+            } else {
+                endWord();
+                inEntity = (c == '&');
+            }
+        }
+    }
+
+    /**
+     * @return the fingerprint, or 0 if there was too little text for one
+     */
+    public long value() {
+        endWord();
+        if (shingles < MIN_SHINGLES) {
+            return 0;
+        }
+        long fingerprint = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (votes[bit] > 0) {
+                fingerprint |= 1L << bit;
+            }
+        }
+        return (fingerprint == 0) ? 1 : fingerprint;
+    }
+
+    /**
+     * @return how many bits the two fingerprints differ in
+     */
+    public static int distance(long fingerprint, long otherFingerprint) {
+        return Long.bitCount(fingerprint ^ otherFingerprint);
+    }
+
+    private void endTag() {
+        inTag = false;
+        String name = tagName.toString().trim();
+        if (inScript) {
+            inScript = !(name.equals("/script") || name.equals("/style"));
+        } else {
+            inScript = name.equals("script") || name.equals("style");
+        }
+        endWord(); //a tag separates words, even without spaces around it
+    }
+
+    private void endWord() {
+        if (wordLength == 0) {
+            return;
+        }
+        long word = mix(wordHash);
+        wordHash = FNV_OFFSET;
+        wordLength = 0;
+        if (++words >= 3) {
+            long shingle = mix(word ^ Long.rotateLeft(previousWord, 21) ^ Long.rotateLeft(wordBeforeThat, 42));
+            for (int bit = 0; bit < 64; bit++) {
+                votes[bit] += ((shingle >>> bit) & 1) != 0 ? 1 : -1;
+            }
+            shingles++;
+        }
+        wordBeforeThat = previousWord;
+        previousWord = word;
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,177 @@
+package com.solronline.twittertracker;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Remembers the {@link PageFingerprint} of every page seen, across runs, to find the pages that are near duplicates
+ * of an earlier one: fingerprints that differ in at most {@link #MAX_DISTANCE} bits.
+ * <p>
+ * The fingerprints are split into MAX_DISTANCE + 1 bands of 16 bits; two fingerprints that close must be equal in
+ * at least one band, so only the pages sharing a band value with the new one are compared. Each band is a hash
+ * table of chained entry numbers in int arrays, and the fingerprints themselves are one long array,
+ * so millions of pages take a few tens of MB.
+ * <p>
+ * On disk it is {@code page-fingerprints.tsv}, a fingerprint and the URL it was first seen at per line, appended to
+ * as pages are added. Only the file offset of each URL is kept in memory; the URL is read back when a page matches.
+ */
+public class PageFingerprintIndex implements Closeable {
+
+    public static final String INDEX_FILE = "page-fingerprints.tsv";
+
+    /** Pages whose fingerprints differ in this many bits or fewer are the same article */
+    public static final int MAX_DISTANCE = 3;
+
+    private static final int BANDS = MAX_DISTANCE + 1;
+    private static final int BAND_BITS = 16;
+    private static final int INITIAL_CAPACITY = 1 << 12;
+
+    private final Path indexPath;
+    private final int[][] bandHeads = new int[BANDS][1 << BAND_BITS];
+    private int[][] bandNext = new int[BANDS][INITIAL_CAPACITY];
+    private long[] fingerprints = new long[INITIAL_CAPACITY];
+    private long[] offsets = new long[INITIAL_CAPACITY];
+    private int size;
+    private long fileLength;
+    private final OutputStream out;
+    private final RandomAccessFile in;
+
+    public PageFingerprintIndex(Path indexPath) throws IOException {
+        this.indexPath = indexPath;
+        for (int[] heads : bandHeads) {
+            Arrays.fill(heads, -1);
+        }
+        if (Files.exists(indexPath)) {
+            load();
+        }
+        this.out = new BufferedOutputStream(new FileOutputStream(indexPath.toFile(), true));
+        this.in = new RandomAccessFile(indexPath.toFile(), "r");
+        System.out.printf("Loaded %d page fingerprints from %s\n", size, indexPath);
+    }
+
+    public static PageFingerprintIndex open(Path workingPath) throws IOException {
+        return new PageFingerprintIndex(workingPath.resolve(INDEX_FILE));
+    }
+
+    /**
+     * Records the page, unless it is a near duplicate of one seen before under another URL
+     * @param fingerprint - see {@link PageFingerprint#value()}
+     * @return the URL the earliest near duplicate was first seen at, or null if the page is new (or was seen at this URL)
+     */
+    public synchronized String checkAndAdd(long fingerprint, String url) throws IOException {
+        int first = find(fingerprint);
+        if (first >= 0) {
+            String firstURL = readURL(first);
+            return firstURL.equals(url) ? null : firstURL;
+        }
+        String hex = Long.toHexString(fingerprint);
+        byte[] line = ("0000000000000000".substring(hex.length()) + hex + '\t' + url + '\n').getBytes(StandardCharsets.UTF_8);
+        out.write(line);
+        add(fingerprint, fileLength + 17);
+        fileLength += line.length;
+        return null;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            out.close();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the number of the first entry within MAX_DISTANCE of the fingerprint, or -1 if there is none
+     */
+    private int find(long fingerprint) {
+        int first = -1;
+        for (int band = 0; band < BANDS; band++) {
+            int[] next = bandNext[band];
+            for (int entry = bandHeads[band][bandValue(fingerprint, band)]; entry >= 0; entry = next[entry]) {
+                if ((first < 0 || entry < first) && PageFingerprint.distance(fingerprint, fingerprints[entry]) <= MAX_DISTANCE) {
+                    first = entry;
+                }
+            }
+        }
+        return first;
+    }
+
+    private void add(long fingerprint, long urlOffset) {
+        if (size == fingerprints.length) {
+            int capacity = size * 2;
+            fingerprints = Arrays.copyOf(fingerprints, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            for (int band = 0; band < BANDS; band++) {
+                bandNext[band] = Arrays.copyOf(bandNext[band], capacity);
+            }
+        }
+        fingerprints[size] = fingerprint;
+        offsets[size] = urlOffset;
+        for (int band = 0; band < BANDS; band++) {
+            int value = bandValue(fingerprint, band);
+            bandNext[band][size] = bandHeads[band][value];
+            bandHeads[band][value] = size;
+        }
+        size++;
+    }
+
+    private static int bandValue(long fingerprint, int band) {
+        return (int) (fingerprint >>> (band * BAND_BITS)) & ((1 << BAND_BITS) - 1);
+    }
+
+    private String readURL(int entry) throws IOException {
+        out.flush(); //it may have been added in this run
+        in.seek(offsets[entry]);
+        ByteArrayOutputStream url = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            url.write(b);
+        }
+        return new String(url.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the fingerprints and where their URLs are; a last line cut short by a crash is dropped
+     */
+    private void load() throws IOException {
+        long offset = 0;
+        try (InputStream fileIn = new BufferedInputStream(new FileInputStream(indexPath.toFile()))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            int b;
+            while ((b = fileIn.read()) != -1) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                byte[] bytes = line.toByteArray();
+                if (bytes.length > 17 && bytes[16] == '\t') {
+                    try {
+                        add(Long.parseUnsignedLong(new String(bytes, 0, 16, StandardCharsets.US_ASCII), 16), offset + 17);
+                    } catch (NumberFormatException e) {
+                        System.err.println("Skipping bad page fingerprint line: " + new String(bytes, StandardCharsets.UTF_8));
+                    }
+                }
+                offset += bytes.length + 1;
+                line.reset();
+            }
+        }
+        if (offset < Files.size(indexPath)) {
+            try (RandomAccessFile file = new RandomAccessFile(indexPath.toFile(), "rw")) {
+                file.setLength(offset);
+            }
+        }
+        fileLength = offset;
+    }
+}
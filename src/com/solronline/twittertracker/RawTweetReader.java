@@ -0,0 +1,92 @@
+package com.solronline.twittertracker;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads raw tweets (one JSON tweet per line, newest first) a batch at a time,
+ * stopping at the lastID of the previous run. Only the current batch is ever held in memory.
+ * The lines come from the old single raw tweets file, or from the blocks of the {@link TweetArchive}.
+ * Only the fields the processing needs are decoded, see {@link TweetDecoder}.
+ * A tweet is only passed on if its ID is lower than that of the one before, so tweets archived twice
+ * (fetched again after a failed run) are only replayed once.
+ */
+public class RawTweetReader implements Closeable {
+
+    private final BufferedReader reader;
+    private final long lastID;
+    private final long maxID;
+    private long previousID = Long.MAX_VALUE;
+    private boolean done;
+
+    /**
+     * @param lastID - stop at the first tweet with this or a lower ID
+     * @param maxID - skip the tweets with a higher ID
+     */
+    public RawTweetReader(Path rawTweetsPath, long lastID, long maxID) throws IOException {
+        this(Files.newBufferedReader(rawTweetsPath, StandardCharsets.UTF_8), lastID, maxID);
+    }
+
+    /**
+     * @param lastID - stop at the first tweet with this or a lower ID
+     * @param maxID - skip the tweets with a higher ID
+     */
+    RawTweetReader(BufferedReader reader, long lastID, long maxID) {
+        this.reader = reader;
+        this.lastID = lastID;
+        this.maxID = maxID;
+    }
+
+    /**
+     * @return up to maxTweets next tweets; empty once the lastID or the end of the file is reached
+     */
+    public List<Tweet> nextBatch(int maxTweets) throws IOException {
+        if (done) {
+            return Collections.emptyList();
+        }
+        List<Tweet> tweets = new ArrayList<>(maxTweets);
+        String rawTweet;
+        while (tweets.size() < maxTweets && (rawTweet = readLine()) != null) {
+            if (rawTweet.isEmpty()) continue;
+            try {
+                Tweet tweet = Tweet.decode(rawTweet);
+                if (tweet.getId() <= lastID) {
+                    System.out.println("Found lastID, no further tweets needed");
+                    done = true;
+                    break;
+                }
+                if (tweet.getId() > maxID || tweet.getId() >= previousID) continue;
+                previousID = tweet.getId();
+                tweets.add(tweet);
+            } catch (IllegalArgumentException e) {
+                System.err.println("Was not able to parse JSON into a tweet. Skipping: " + rawTweet);
+                e.printStackTrace();
+            }
+        }
+        if (tweets.size() < maxTweets) {
+            done = true;
+        }
+        return tweets;
+    }
+
+    private String readLine() throws IOException {
+        try {
+            return reader.readLine();
+        } catch (UncheckedIOException e) { //from opening the next archive block
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -0,0 +1,367 @@
+package com.solronline.twittertracker;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+/**
+ * Remembers where short links end up, so the same t.co/bit.ly link is not followed again on every run.
+ * <p>
+ * Two tiers: a small LRU map in memory, and an append-only tab-separated log on disk.
+ * Of the log only a 64 bit hash of each URL and the offset of its line are kept in memory; the lines are read back
+ * when they fall out of the LRU. New entries are appended in batches, so the resolving threads seldom wait on the disk.
+ * The log is compacted (on close, or between daemon cycles) once it is mostly superseded or expired entries.
+ * Failures are cached too (with their own, shorter, TTL), so a dead link is not retried on every run.
+ * <p>
+ * The tracker and URLResolver may share the log while both are running. Appends and compactions hold a lock on
+ * {@code url-cache.tsv.lock}, and first pick up what the other process appended, or reopen the log if it compacted it.
+ */
+public class ResolutionCache implements Closeable {
+
+    public static final String CACHE_FILE = "url-cache.tsv";
+    public static final String LOCK_FILE = CACHE_FILE + ".lock";
+
+    private static final int WRITE_BATCH = 64;
+    private static final int LENGTH_BITS = 24;
+    private static final long MAX_LINE_LENGTH = (1L << LENGTH_BITS) - 1;
+
+    private final Path cachePath;
+    private final long ttlMillis;
+    private final long negativeTtlMillis;
+    private final LinkedHashMap<String, Entry> memory;
+    private final HashMap<Long, Long> diskIndex = new HashMap<>(); //url hash -> (offset << LENGTH_BITS | length)
+    private final LinkedHashMap<String, Entry> unwritten = new LinkedHashMap<>();
+    private final FileChannel lockChannel;
+    private RandomAccessFile log;
+    private Object logKey; //to tell when another process has replaced the log
+    private long indexedLength;
+    private int logLines;
+    private long hits;
+    private long misses;
+
+    public ResolutionCache(Path cachePath, int memoryEntries, long ttlMillis, long negativeTtlMillis) throws IOException {
+        this.cachePath = cachePath;
+        this.ttlMillis = ttlMillis;
+        this.negativeTtlMillis = negativeTtlMillis;
+        this.memory = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > memoryEntries;
+            }
+        };
+        this.lockChannel = FileChannel.open(cachePath.resolveSibling(LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = lockChannel.lock();
+        try {
+            openLog();
+        } finally {
+            lock.release();
+        }
+        System.out.printf("Loaded %d cached URL resolutions from %s\n", diskIndex.size(), cachePath);
+    }
+
+    /**
+     * Opens the cache in the working directory, configured from the system properties
+     */
+    public static ResolutionCache open(Path workingPath) throws IOException {
+        return new ResolutionCache(
+                workingPath.resolve(CACHE_FILE),
+                Integer.getInteger("twittertracker.cacheMemoryEntries", 10000),
+                Long.getLong("twittertracker.cacheTtlHours", 24 * 7) * 3600_000L,
+                Long.getLong("twittertracker.cacheNegativeTtlMinutes", 60) * 60_000L);
+    }
+
+    /**
+     * (Re)opens the log and indexes all of it; the lock must be held
+     */
+    private void openLog() throws IOException {
+        log = new RandomAccessFile(cachePath.toFile(), "rw");
+        logKey = Files.readAttributes(cachePath, BasicFileAttributes.class).fileKey();
+        diskIndex.clear();
+        logLines = 0;
+        indexedLength = 0;
+        loadIndex();
+    }
+
+    /**
+     * Catches up with what another process did to the log since this one last looked; the lock must be held
+     */
+    private void syncLog() throws IOException {
+        Object key = Files.readAttributes(cachePath, BasicFileAttributes.class).fileKey();
+        boolean replaced = (key != null) ? !key.equals(logKey) : Files.size(cachePath) < indexedLength;
+        if (replaced) { //compacted by the other process
+            log.close();
+            openLog();
+        } else if (log.length() != indexedLength) {
+            loadIndex();
+        }
+    }
+
+    /**
+     * Indexes the lines from where the index stops; the lock must be held
+     */
+    private void loadIndex() throws IOException {
+        long offset = indexedLength;
+        FileChannel channel = FileChannel.open(cachePath, StandardOpenOption.READ);
+        try (InputStream in = new BufferedInputStream(Channels.newInputStream(channel.position(offset)))) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+                int urlStart = text.indexOf('\t', text.indexOf('\t') + 1) + 1;
+                int urlEnd = text.indexOf('\t', urlStart);
+                if (urlStart > 0 && urlEnd > urlStart) {
+                    diskIndex.put(SeenURLIndex.hash(text.substring(urlStart, urlEnd)), (offset << LENGTH_BITS) | line.size());
+                }
+                offset += line.size() + 1;
+                logLines++;
+                line.reset();
+            }
+        }
+        if (offset != log.length()) { //half-written last line from a crashed run, drop it
+            log.setLength(offset);
+        }
+        indexedLength = offset;
+    }
+
+    /**
+     * @return the cached resolution, or null if there is none or it has expired
+     */
+    public synchronized Entry get(String initialURL) {
+        Entry entry = memory.get(initialURL);
+        if (entry == null) {
+            entry = unwritten.get(initialURL);
+        }
+        if (entry == null) {
+            Long position = diskIndex.get(SeenURLIndex.hash(initialURL));
+            if (position != null) {
+                entry = readEntry(position);
+            }
+            if (entry != null && !entry.initialURL.equals(initialURL)) { //another URL with the same hash
+                entry = null;
+            }
+        }
+        if (entry == null || isExpired(entry, System.currentTimeMillis())) {
+            misses++;
+            return null;
+        }
+        memory.put(initialURL, entry);
+        hits++;
+        return entry;
+    }
+
+    public synchronized void put(Entry entry) {
+        memory.put(entry.initialURL, entry);
+        unwritten.put(entry.initialURL, entry);
+        if (unwritten.size() >= WRITE_BATCH) {
+            FileLock lock = null;
+            try {
+                lock = lockChannel.lock();
+                syncLog();
+                writeUnwritten();
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            } finally {
+                release(lock);
+            }
+        }
+    }
+
+    /**
+     * Appends the entries not on disk yet in one write; the lock must be held, and the log in sync
+     */
+    private void writeUnwritten() throws IOException {
+        if (unwritten.isEmpty()) {
+            return;
+        }
+        long offset = log.length();
+        ByteArrayOutputStream lines = new ByteArrayOutputStream(unwritten.size() * 256);
+        HashMap<Long, Long> positions = new HashMap<>();
+        int written = 0;
+        for (Entry entry : unwritten.values()) {
+            byte[] line = entry.toLine().getBytes(StandardCharsets.UTF_8);
+            if (line.length > MAX_LINE_LENGTH) {
+                continue; //memory only, not worth the disk
+            }
+            positions.put(SeenURLIndex.hash(entry.initialURL), ((offset + lines.size()) << LENGTH_BITS) | line.length);
+            lines.write(line);
+            lines.write('\n');
+            written++;
+        }
+        unwritten.clear(); //even if the write fails, rather than retrying it with ever more entries
+        log.seek(offset);
+        log.write(lines.toByteArray());
+        diskIndex.putAll(positions);
+        indexedLength = offset + lines.size();
+        logLines += written;
+    }
+
+    private static void release(FileLock lock) {
+        if (lock != null) {
+            try {
+                lock.release();
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized double getHitRatio() {
+        return (hits + misses == 0) ? 0 : (double) hits / (hits + misses);
+    }
+
+    private Entry readEntry(long position) {
+        long offset = position >>> LENGTH_BITS;
+        byte[] line = new byte[(int) (position & MAX_LINE_LENGTH)];
+        try {
+            log.seek(offset);
+            log.readFully(line);
+            return Entry.fromLine(new String(line, StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Could not read cached URL resolution at offset " + offset);
+            e.printStackTrace(System.err);
+            return null;
+        }
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.fetchedAt > (entry.isFailure() ? negativeTtlMillis : ttlMillis);
+    }
+
+    /**
+     * Rewrites the log if most of it is superseded entries; the cache stays usable
+     */
+    public synchronized void compactIfStale() throws IOException {
+        FileLock lock = lockChannel.lock();
+        try {
+            syncLog();
+            writeUnwritten();
+            if (logLines > 1000 && logLines > 2 * diskIndex.size()) {
+                compact();
+                openLog();
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            FileLock lock = lockChannel.lock();
+            try {
+                syncLog();
+                writeUnwritten();
+                if (logLines > 1000 && logLines > 2 * diskIndex.size()) {
+                    compact();
+                } else {
+                    log.close();
+                }
+            } finally {
+                lock.release();
+            }
+        } finally {
+            lockChannel.close();
+        }
+    }
+
+    /**
+     * Rewrites the log with only the latest, unexpired, entry for each URL; the lock must be held
+     */
+    private void compact() throws IOException {
+        long now = System.currentTimeMillis();
+        Path compactPath = cachePath.resolveSibling(cachePath.getFileName() + ".tmp");
+        int kept = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(compactPath, StandardCharsets.UTF_8)) {
+            for (Long position : diskIndex.values()) {
+                Entry entry = readEntry(position);
+                if (entry != null && !isExpired(entry, now)) {
+                    writer.write(entry.toLine());
+                    writer.write('\n');
+                    kept++;
+                }
+            }
+        }
+        log.close();
+        Files.move(compactPath, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        System.out.printf("Compacted URL cache from %d to %d entries\n", logLines, kept);
+    }
+
+    /**
+     * One cached resolution. A failure has no final URL, but an error message instead.
+     */
+    public static class Entry {
+        private final String initialURL;
+        private final String finalURL;
+        private final List<String> redirects;
+        private final int statusCode;
+        private final long fetchedAt;
+        private final String error;
+
+        public Entry(String initialURL, String finalURL, List<String> redirects, int statusCode, long fetchedAt, String error) {
+            this.initialURL = initialURL;
+            this.finalURL = finalURL;
+            this.redirects = redirects;
+            this.statusCode = statusCode;
+            this.fetchedAt = fetchedAt;
+            this.error = error;
+        }
+
+        public static Entry resolved(String initialURL, String finalURL, List<String> redirects, int statusCode) {
+            return new Entry(initialURL, finalURL, redirects, statusCode, System.currentTimeMillis(), null);
+        }
+
+        public static Entry failed(String initialURL, String error) {
+            return new Entry(initialURL, null, Collections.emptyList(), -1, System.currentTimeMillis(),
+                    (error == null) ? "unknown error" : error);
+        }
+
+        public String getInitialURL() { return initialURL; }
+
+        public String getFinalURL() { return finalURL; }
+
+        public List<String> getRedirects() { return redirects; }
+
+        public int getStatusCode() { return statusCode; }
+
+        public long getFetchedAt() { return fetchedAt; }
+
+        public String getError() { return error; }
+
+        public boolean isFailure() { return error != null; }
+
+        // fetchedAt \t status \t initialURL \t finalURL \t error \t redirects (space separated)
+        String toLine() {
+            return String.valueOf(fetchedAt) + '\t' + statusCode + '\t' + initialURL + '\t'
+                    + (finalURL == null ? "" : finalURL) + '\t'
+                    + (error == null ? "" : error.replaceAll("[\t\r\n]", " ")) + '\t'
+                    + String.join(" ", redirects);
+        }
+
+        static Entry fromLine(String line) {
+            String[] fields = line.split("\t", -1);
+            List<String> redirects = fields[5].isEmpty()
+                    ? Collections.emptyList()
+                    : Arrays.asList(fields[5].split(" "));
+            return new Entry(fields[2], fields[3].isEmpty() ? null : fields[3], redirects,
+                    Integer.parseInt(fields[1]), Long.parseLong(fields[0]), fields[4].isEmpty() ? null : fields[4]);
+        }
+    }
+}
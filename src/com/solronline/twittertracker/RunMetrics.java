@@ -0,0 +1,295 @@
+package com.solronline.twittertracker;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Counters, latency histograms and gauges of a run, safe to update from the worker threads.
+ * After each run (or daemon cycle) a snapshot goes to the working directory twice:
+ * as JSON and in the Prometheus text format (for the node exporter textfile collector, or anything else).
+ * Values are cumulative since the start of the process, as Prometheus expects.
+ */
+public class RunMetrics {
+
+    private static final double[] BUCKETS_SECONDS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+    /** The link shorteners always get their own host label, that is where most of the resolution time goes */
+    private static final Set<String> SHORTENER_HOSTS = new HashSet<>(Arrays.asList(
+            "t.co", "bit.ly", "buff.ly", "ow.ly", "goo.gl", "tinyurl.com", "dlvr.it", "ift.tt", "lnkd.in",
+            "trib.al", "fb.me", "youtu.be", "amzn.to", "j.mp", "wp.me", "feedproxy.google.com"));
+    private static final String OTHER_HOST = "other";
+
+    private final int maxHostLabels = Integer.getInteger("twittertracker.metricsMaxHosts", 20);
+    private final Set<String> hostLabels = ConcurrentHashMap.newKeySet();
+
+    private final ConcurrentSkipListMap<Series, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Series, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Series, Supplier<Number>> gauges = new ConcurrentSkipListMap<>();
+
+    public void increment(String name) {
+        increment(name, null, null);
+    }
+
+    public void increment(String name, String labelName, String labelValue) {
+        add(name, labelName, labelValue, 1);
+    }
+
+    public void add(String name, String labelName, String labelValue, long amount) {
+        counters.computeIfAbsent(new Series(name, labelName, labelValue), series -> new LongAdder()).add(amount);
+    }
+
+    /**
+     * @return the host as a label value: the shorteners and the first metricsMaxHosts other hosts seen have their own,
+     * the rest share "other", so a long running process does not get a series per news site
+     */
+    public String hostLabel(String host) {
+        if (host == null) {
+            return OTHER_HOST;
+        }
+        host = host.toLowerCase(Locale.ROOT);
+        if (SHORTENER_HOSTS.contains(host) || hostLabels.contains(host)) {
+            return host;
+        }
+        synchronized (hostLabels) {
+            if (hostLabels.size() < maxHostLabels) {
+                hostLabels.add(host);
+                return host;
+            }
+        }
+        return OTHER_HOST;
+    }
+
+    /**
+     * Records how long something took, from the System.nanoTime() taken when it started
+     */
+    public void observeSince(String name, String labelName, String labelValue, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        histograms.computeIfAbsent(new Series(name, labelName, labelValue), series -> new Histogram()).observe(nanos);
+    }
+
+    /**
+     * Registers a value that is read when the snapshot is written, e.g. a cache hit count
+     */
+    public void gauge(String name, String labelName, String labelValue, Supplier<Number> value) {
+        gauges.put(new Series(name, labelName, labelValue), value);
+    }
+
+    /**
+     * Writes baseName.json and baseName.prom into the directory, each replaced in one go
+     */
+    public void writeSnapshot(Path directory, String baseName) throws IOException {
+        writeAtomically(directory.resolve(baseName + ".json"), toJSON());
+        writeAtomically(directory.resolve(baseName + ".prom"), toPrometheus());
+    }
+
+    String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        String lastName = null;
+        for (Map.Entry<Series, LongAdder> counter : counters.entrySet()) {
+            Series series = counter.getKey();
+            if (!series.name.equals(lastName)) {
+                out.append("# TYPE ").append(series.name).append(" counter\n");
+                lastName = series.name;
+            }
+            out.append(series.name).append(series.prometheusLabels(null)).append(' ').append(counter.getValue().sum()).append('\n');
+        }
+        for (Map.Entry<Series, Supplier<Number>> gauge : gauges.entrySet()) {
+            Series series = gauge.getKey();
+            if (!series.name.equals(lastName)) {
+                out.append("# TYPE ").append(series.name).append(" gauge\n");
+                lastName = series.name;
+            }
+            out.append(series.name).append(series.prometheusLabels(null)).append(' ').append(gauge.getValue().get()).append('\n');
+        }
+        for (Map.Entry<Series, Histogram> histogram : histograms.entrySet()) {
+            Series series = histogram.getKey();
+            if (!series.name.equals(lastName)) {
+                out.append("# TYPE ").append(series.name).append(" histogram\n");
+                lastName = series.name;
+            }
+            long[] buckets = histogram.getValue().cumulativeBuckets();
+            for (int i = 0; i < BUCKETS_SECONDS.length; i++) {
+                out.append(series.name).append("_bucket").append(series.prometheusLabels(formatDouble(BUCKETS_SECONDS[i])))
+                        .append(' ').append(buckets[i]).append('\n');
+            }
+            out.append(series.name).append("_bucket").append(series.prometheusLabels("+Inf"))
+                    .append(' ').append(buckets[BUCKETS_SECONDS.length]).append('\n');
+            out.append(series.name).append("_sum").append(series.prometheusLabels(null))
+                    .append(' ').append(formatDouble(histogram.getValue().sumSeconds())).append('\n');
+            out.append(series.name).append("_count").append(series.prometheusLabels(null))
+                    .append(' ').append(buckets[BUCKETS_SECONDS.length]).append('\n');
+        }
+        return out.toString();
+    }
+
+    String toJSON() {
+        SimpleDateFormat isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ROOT);
+        isoFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        StringBuilder out = new StringBuilder();
+        out.append("{\n  \"timestamp\": \"").append(isoFormat.format(new Date())).append("\",\n");
+
+        out.append("  \"counters\": [");
+        String separator = "\n";
+        for (Map.Entry<Series, LongAdder> counter : counters.entrySet()) {
+            out.append(separator).append("    {").append(counter.getKey().jsonFields())
+                    .append(", \"value\": ").append(counter.getValue().sum()).append('}');
+            separator = ",\n";
+        }
+        out.append("\n  ],\n");
+
+        out.append("  \"gauges\": [");
+        separator = "\n";
+        for (Map.Entry<Series, Supplier<Number>> gauge : gauges.entrySet()) {
+            out.append(separator).append("    {").append(gauge.getKey().jsonFields())
+                    .append(", \"value\": ").append(gauge.getValue().get()).append('}');
+            separator = ",\n";
+        }
+        out.append("\n  ],\n");
+
+        out.append("  \"histograms\": [");
+        separator = "\n";
+        for (Map.Entry<Series, Histogram> histogram : histograms.entrySet()) {
+            long[] buckets = histogram.getValue().cumulativeBuckets();
+            out.append(separator).append("    {").append(histogram.getKey().jsonFields())
+                    .append(", \"count\": ").append(buckets[BUCKETS_SECONDS.length])
+                    .append(", \"sumSeconds\": ").append(formatDouble(histogram.getValue().sumSeconds()))
+                    .append(", \"buckets\": {");
+            for (int i = 0; i < BUCKETS_SECONDS.length; i++) {
+                out.append('"').append(formatDouble(BUCKETS_SECONDS[i])).append("\": ").append(buckets[i]).append(", ");
+            }
+            out.append("\"+Inf\": ").append(buckets[BUCKETS_SECONDS.length]).append("}}");
+            separator = ",\n";
+        }
+        out.append("\n  ]\n}\n");
+        return out.toString();
+    }
+
+    private static void writeAtomically(Path path, String content) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            writer.write(content);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String formatDouble(double value) {
+        return (value == Math.rint(value) && !Double.isInfinite(value))
+                ? String.valueOf((long) value)
+                : String.valueOf(value);
+    }
+
+    private static String escape(String value, boolean json) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                escaped.append('\\').append(c);
+            } else if (c == '\n') {
+                escaped.append("\\n");
+            } else if (json && c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * A metric name with at most one label, which is all we need
+     */
+    private static class Series implements Comparable<Series> {
+        final String name;
+        final String labelName;
+        final String labelValue;
+
+        Series(String name, String labelName, String labelValue) {
+            this.name = name;
+            this.labelName = labelName;
+            this.labelValue = (labelName == null) ? null : String.valueOf(labelValue);
+        }
+
+        String prometheusLabels(String bucket) {
+            StringBuilder labels = new StringBuilder();
+            if (labelName != null) {
+                labels.append(labelName).append("=\"").append(escape(labelValue, false)).append('"');
+            }
+            if (bucket != null) {
+                labels.append(labels.length() > 0 ? "," : "").append("le=\"").append(bucket).append('"');
+            }
+            return (labels.length() == 0) ? "" : "{" + labels + "}";
+        }
+
+        String jsonFields() {
+            return "\"name\": \"" + name + "\", \"labels\": {"
+                    + ((labelName == null) ? "" : "\"" + labelName + "\": \"" + escape(labelValue, true) + "\"")
+                    + "}";
+        }
+
+        @Override
+        public int compareTo(Series other) {
+            int byName = name.compareTo(other.name);
+            if (byName != 0) return byName;
+            int byLabel = String.valueOf(labelName).compareTo(String.valueOf(other.labelName));
+            if (byLabel != 0) return byLabel;
+            return String.valueOf(labelValue).compareTo(String.valueOf(other.labelValue));
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Series && compareTo((Series) other) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(name, labelName, labelValue);
+        }
+    }
+
+    private static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS_SECONDS.length + 1);
+        private final LongAdder sumNanos = new LongAdder();
+
+        void observe(long nanos) {
+            double seconds = nanos / 1e9;
+            int bucket = 0;
+            while (bucket < BUCKETS_SECONDS.length && seconds > BUCKETS_SECONDS[bucket]) {
+                bucket++;
+            }
+            buckets.incrementAndGet(bucket);
+            sumNanos.add(nanos);
+        }
+
+        long[] cumulativeBuckets() {
+            long[] cumulative = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < cumulative.length; i++) {
+                total += buckets.get(i);
+                cumulative[i] = total;
+            }
+            return cumulative;
+        }
+
+        double sumSeconds() {
+            return sumNanos.sum() / 1e9;
+        }
+    }
+}
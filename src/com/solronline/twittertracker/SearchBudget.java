@@ -0,0 +1,64 @@
+package com.solronline.twittertracker;
+
+import twitter4j.RateLimitStatus;
+
+/**
+ * The Twitter search rate limit, shared by every topic searched from this process.
+ * Starts from the configured number of searches per 15 minute window and follows what Twitter says is left,
+ * whenever a response tells us.
+ */
+public class SearchBudget {
+
+    private static final long WINDOW_MILLIS = 15 * 60_000L;
+
+    private final int limit;
+    private int remaining;
+    private long resetAt;
+
+    public SearchBudget(int limit) {
+        this.limit = limit;
+    }
+
+    public static SearchBudget fromSystemProperties() {
+        return new SearchBudget(Integer.getInteger("twittertracker.searchesPer15Minutes", 180));
+    }
+
+    /**
+     * @return true if a search may be made now, which is then counted
+     */
+    public synchronized boolean tryAcquire() {
+        refresh();
+        if (remaining <= 0) {
+            return false;
+        }
+        remaining--;
+        return true;
+    }
+
+    /**
+     * @return how many searches are left in the current window
+     */
+    public synchronized int available() {
+        refresh();
+        return remaining;
+    }
+
+    /**
+     * Takes over the remaining count and reset time reported by Twitter, if any
+     */
+    public synchronized void update(RateLimitStatus status) {
+        if (status == null) {
+            return;
+        }
+        remaining = status.getRemaining();
+        resetAt = System.currentTimeMillis() + status.getSecondsUntilReset() * 1000L;
+    }
+
+    private void refresh() {
+        long now = System.currentTimeMillis();
+        if (now >= resetAt) {
+            remaining = limit;
+            resetAt = now + WINDOW_MILLIS;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.solronline.twittertracker;
+
+import twitter4j.*;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pages through the search results for a window of tweet IDs, newest first, while the pages already received
+ * are being processed: the next page is fetched on a background thread as soon as the previous one is handed over.
+ * <p>
+ * The window is given by sinceId/maxId, so Twitter returns only the tweets we have not seen,
+ * and each page costs a search from the shared {@link SearchBudget}; the fetch stops when either the results,
+ * the pages allowed or the budget run out. A window that was not finished can be continued later from its oldest tweet.
+ * <p>
+ * The Twitter client is whatever it is configured to talk to, so a local stub server can stand in for the
+ * search endpoint (twitter4j.restBaseURL).
+ */
+public class SearchFetcher {
+
+    /** The most tweets a search page can have */
+    public static final int PAGE_SIZE = 100;
+
+    private static final Object END = new Object();
+
+    private final Twitter twitter;
+    private final SearchBudget searchBudget;
+    private final RunMetrics metrics;
+
+    public SearchFetcher(Twitter twitter, SearchBudget searchBudget, RunMetrics metrics) {
+        this.twitter = twitter;
+        this.searchBudget = searchBudget;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Fetches the tweets with sinceID &lt; ID &lt;= maxID, handing each page to the handler on the calling thread
+     * @param sinceID - exclusive lower bound, or -1 for as far back as the search goes
+     * @param maxID - inclusive upper bound, or -1 for the newest
+     * @param maxPages - at most this many searches
+     * @return what was fetched; not complete if stopped before reaching the sinceID
+     */
+    public Window fetch(String searchQuery, long sinceID, long maxID, int maxPages, PageHandler handler) throws IOException {
+        BlockingQueue<Object> pages = new ArrayBlockingQueue<>(1); //one page ahead of the processing
+        Window window = new Window();
+        Thread fetcher = new Thread(() -> fetchPages(searchQuery, sinceID, maxID, maxPages, pages, window), "search-fetcher");
+        fetcher.setDaemon(true);
+        fetcher.start();
+        try {
+            while (true) {
+                Object page = pages.take();
+                if (page == END) {
+                    break;
+                }
+                handler.handle((Page) page);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for search results");
+        } finally {
+            window.cancelled = true;
+            pages.clear(); //unblocks the fetcher if we stopped early
+            try {
+                fetcher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return window;
+    }
+
+    private void fetchPages(String searchQuery, long sinceID, long maxID, int maxPages,
+                            BlockingQueue<Object> pages, Window window) {
+        Query query = new Query(searchQuery);
+        query.setCount(PAGE_SIZE);
+        query.setResultType(Query.ResultType.recent);
+        if (sinceID > 0) {
+            query.setSinceId(sinceID);
+        }
+        if (maxID > 0) {
+            query.setMaxId(maxID);
+        }
+        try {
+            while (!window.cancelled) {
+                if (window.pages >= maxPages || !searchBudget.tryAcquire()) {
+                    System.out.printf("Stopping the search after %d pages, the rest is left for later\n", window.pages);
+                    metrics.increment("twittertracker_searches_stopped_early_total");
+                    break;
+                }
+                System.out.println("Running twitter search");
+                QueryResult result;
+                long searchStart = System.nanoTime();
+                try {
+                    result = twitter.search(query);
+                } finally {
+                    metrics.observeSince("twittertracker_twitter_search_seconds", null, null, searchStart);
+                }
+                window.pages++;
+                searchBudget.update(result.getRateLimitStatus());
+
+                //the raw JSON is only kept until the next request on this thread, so take it now
+                Page page = new Page();
+                for (Status tweet : result.getTweets()) {
+                    if (tweet.getId() <= sinceID) continue; //should not happen with sinceId, but then it is not new
+                    String rawTweet = TwitterObjectFactory.getRawJSON(tweet);
+                    page.tweets.add(Tweet.of(tweet, rawTweet));
+                    page.rawTweets.add(rawTweet);
+                    page.ids.add(tweet.getId());
+                    if (window.newestID < 0) {
+                        window.newestID = tweet.getId();
+                    }
+                    window.oldestID = tweet.getId();
+                }
+                window.tweets += page.tweets.size();
+                metrics.add("twittertracker_tweets_fetched_total", null, null, page.tweets.size());
+                if (!page.tweets.isEmpty()) {
+                    put(pages, page, window);
+                }
+
+                query = result.nextQuery();
+                if (query == null || page.tweets.isEmpty()) {
+                    window.complete = true;
+                    break;
+                }
+            }
+        } catch (TwitterException e) {
+            searchBudget.update(e.getRateLimitStatus());
+            e.printStackTrace();
+        } catch (RuntimeException e) {
+            e.printStackTrace(System.err);
+        } finally {
+            put(pages, END, window);
+        }
+    }
+
+    private static void put(BlockingQueue<Object> pages, Object page, Window window) {
+        try {
+            while (!window.cancelled && !pages.offer(page, 100, TimeUnit.MILLISECONDS)) {
+                //the processing is still busy with the previous page
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public interface PageHandler {
+        void handle(Page page) throws IOException;
+    }
+
+    /**
+     * One page of search results, newest first, with the raw JSON of each tweet for the archive
+     */
+    public static class Page {
+        final List<Tweet> tweets = new ArrayList<>(PAGE_SIZE);
+        final List<String> rawTweets = new ArrayList<>(PAGE_SIZE);
+        final List<Long> ids = new ArrayList<>(PAGE_SIZE);
+
+        public List<Tweet> getTweets() { return tweets; }
+
+        public List<String> getRawTweets() { return rawTweets; }
+
+        public List<Long> getIDs() { return ids; }
+    }
+
+    /**
+     * How far a fetch got. Written by the fetcher thread, read once it is done.
+     */
+    public static class Window {
+        volatile boolean cancelled;
+        volatile int pages;
+        volatile int tweets;
+        volatile long newestID = -1;
+        volatile long oldestID = -1;
+        volatile boolean complete;
+
+        public int getPages() { return pages; }
+
+        public int getTweets() { return tweets; }
+
+        public long getNewestID() { return newestID; }
+
+        public long getOldestID() { return oldestID; }
+
+        /**
+         * @return true if every tweet down to the sinceID was fetched
+         */
+        public boolean isComplete() { return complete; }
+    }
+}
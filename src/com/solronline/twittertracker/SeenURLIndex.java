@@ -0,0 +1,244 @@
+package com.solronline.twittertracker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers every URL ever accepted (by its canonical form), across runs, so the same article shared by many
+ * accounts over many days is only written out once.
+ * <p>
+ * On disk it is an open addressing hash table in a memory mapped file: per URL just a 64 bit hash,
+ * the ID of the first tweet that had it and when that was (20 bytes), so millions of URLs fit in a few tens of MB.
+ * A Bloom filter in memory answers most "never seen" questions without touching the table pages.
+ * The table doubles (into a new file, swapped in atomically) once it is 70% full.
+ * <p>
+ * URLs added are only kept in memory until {@link #flush()}, which is called once their tweets are written out:
+ * after a crash the tweets fetched again must not find their URLs already taken by output that was lost.
+ */
+public class SeenURLIndex implements Closeable {
+
+    public static final String INDEX_FILE = "seen-urls.idx";
+
+    private static final int MAGIC = 0x53454E31; //SEN1
+    private static final int HEADER_SIZE = 16; //magic, slot count, entry count
+    private static final int SLOT_SIZE = 20; //hash, first tweet ID, first seen (seconds)
+    private static final int BLOOM_HASHES = 6;
+    private static final int INITIAL_SLOTS = 1 << 16;
+
+    private final Path indexPath;
+    private RandomAccessFile file;
+    private MappedByteBuffer table;
+    private int slotCount;
+    private int entryCount;
+    private long[] bloom;
+    private final HashMap<Long, Seen> pending = new HashMap<>();
+
+    public SeenURLIndex(Path indexPath) throws IOException {
+        this.indexPath = indexPath;
+        if (Files.notExists(indexPath) || Files.size(indexPath) < HEADER_SIZE) {
+            create(indexPath, INITIAL_SLOTS);
+        }
+        map(indexPath);
+        if (table.getInt(0) != MAGIC) {
+            throw new IOException("Not a seen URL index: " + indexPath);
+        }
+        slotCount = table.getInt(4);
+        entryCount = table.getInt(8);
+        rebuildBloom();
+        System.out.printf("Loaded %d seen URLs from %s\n", entryCount, indexPath);
+    }
+
+    public static SeenURLIndex open(Path workingPath) throws IOException {
+        return new SeenURLIndex(workingPath.resolve(INDEX_FILE));
+    }
+
+    /**
+     * Records the URL as seen in the given tweet, unless it was seen before in another tweet
+     * (a tweet replayed or fetched again still has its own URLs)
+     * @return null if the URL is new to this tweet, otherwise when and where it was first seen
+     */
+    public synchronized Seen checkAndAdd(String canonicalURL, long tweetID) {
+        long hash = hash(canonicalURL);
+        Seen seen = pending.get(hash);
+        if (seen == null && mightContain(hash)) {
+            int slot = findSlot(table, slotCount, hash);
+            if (table.getLong(slotOffset(slot)) == hash) {
+                seen = new Seen(table.getLong(slotOffset(slot) + 8), table.getInt(slotOffset(slot) + 16) * 1000L);
+            }
+        }
+        if (seen != null) {
+            return (seen.getTweetID() == tweetID) ? null : seen;
+        }
+        pending.put(hash, new Seen(tweetID, System.currentTimeMillis()));
+        return null;
+    }
+
+    public synchronized int size() {
+        return entryCount + pending.size();
+    }
+
+    /**
+     * Puts the URLs added so far into the table and makes sure they are on disk
+     */
+    public synchronized void flush() throws IOException {
+        for (Map.Entry<Long, Seen> entry : pending.entrySet()) {
+            if ((entryCount + 1) * 10L > slotCount * 7L) {
+                grow();
+            }
+            long hash = entry.getKey();
+            writeSlot(table, findSlot(table, slotCount, hash), hash, entry.getValue().getTweetID(),
+                    (int) (entry.getValue().getFirstSeen() / 1000));
+            entryCount++;
+            addToBloom(hash);
+        }
+        pending.clear();
+        table.putInt(8, entryCount);
+        table.force();
+    }
+
+    /**
+     * URLs added since the last {@link #flush()} are forgotten, their tweets were not known to be written out
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        table.force();
+        file.close();
+    }
+
+    private void grow() throws IOException {
+        int newSlotCount = slotCount * 2;
+        Path growPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        create(growPath, newSlotCount);
+        try (RandomAccessFile growFile = new RandomAccessFile(growPath.toFile(), "rw")) {
+            MappedByteBuffer newTable = growFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, growFile.length());
+            for (int slot = 0; slot < slotCount; slot++) {
+                long hash = table.getLong(slotOffset(slot));
+                if (hash != 0) {
+                    writeSlot(newTable, findSlot(newTable, newSlotCount, hash), hash,
+                            table.getLong(slotOffset(slot) + 8), table.getInt(slotOffset(slot) + 16));
+                }
+            }
+            newTable.putInt(8, entryCount);
+            newTable.force();
+        }
+        file.close();
+        Files.move(growPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map(indexPath);
+        slotCount = newSlotCount;
+        rebuildBloom();
+    }
+
+    private void map(Path path) throws IOException {
+        file = new RandomAccessFile(path.toFile(), "rw");
+        table = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+    }
+
+    private static void create(Path path, int slotCount) throws IOException {
+        try (RandomAccessFile newFile = new RandomAccessFile(path.toFile(), "rw")) {
+            newFile.setLength(HEADER_SIZE + (long) slotCount * SLOT_SIZE);
+            newFile.writeInt(MAGIC);
+            newFile.writeInt(slotCount);
+            newFile.writeInt(0);
+        }
+    }
+
+    /**
+     * @return the slot holding the hash, or the empty slot where it would go (linear probing)
+     */
+    private static int findSlot(MappedByteBuffer table, int slotCount, long hash) {
+        int slot = (int) ((hash >>> 1) % slotCount);
+        while (true) {
+            long slotHash = table.getLong(slotOffset(slot));
+            if (slotHash == 0 || slotHash == hash) {
+                return slot;
+            }
+            slot = (slot + 1 == slotCount) ? 0 : slot + 1;
+        }
+    }
+
+    private static void writeSlot(MappedByteBuffer table, int slot, long hash, long tweetID, int firstSeenSeconds) {
+        int offset = slotOffset(slot);
+        table.putLong(offset, hash);
+        table.putLong(offset + 8, tweetID);
+        table.putInt(offset + 16, firstSeenSeconds);
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private void rebuildBloom() {
+        bloom = new long[Math.max(1, slotCount / 8)]; //8 bits per slot, so 11+ bits per URL
+        for (int slot = 0; slot < slotCount; slot++) {
+            long hash = table.getLong(slotOffset(slot));
+            if (hash != 0) {
+                addToBloom(hash);
+            }
+        }
+    }
+
+    private void addToBloom(long hash) {
+        long bits = bloom.length * 64L;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = ((h1 + i * h2) & 0x7fffffffL) % bits;
+            bloom[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private boolean mightContain(long hash) {
+        long bits = bloom.length * 64L;
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            long bit = ((h1 + i * h2) & 0x7fffffffL) % bits;
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 64 bit FNV-1a with a final avalanche, never 0 (that marks an empty slot)
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (hash == 0) ? 1 : hash;
+    }
+
+    /**
+     * Where a URL was first seen
+     */
+    public static class Seen {
+        private final long tweetID;
+        private final long firstSeen;
+
+        Seen(long tweetID, long firstSeen) {
+            this.tweetID = tweetID;
+            this.firstSeen = firstSeen;
+        }
+
+        public long getTweetID() { return tweetID; }
+
+        public long getFirstSeen() { return firstSeen; }
+    }
+}
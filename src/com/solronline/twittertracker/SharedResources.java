@@ -0,0 +1,70 @@
+package com.solronline.twittertracker;
+
+import twitter4j.Twitter;
+import twitter4j.TwitterFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * What all the trackers of one process share: the Twitter client and its search rate limit,
+ * the link resolution client with its connection pool and host health, the URL cache and the URL cleanup rules.
+ * A link shared under several topics is then only resolved once.
+ */
+public class SharedResources implements Closeable {
+
+    private final Path workingPath;
+    private final RunMetrics metrics;
+    private final ResolutionCache resolutionCache;
+    private final LinkResolver linkResolver;
+    private final SearchBudget searchBudget;
+    private final URLCanonicalizer canonicalizer;
+    private Twitter twitter;
+
+    /**
+     * @param workingPath - where the URL cache lives
+     * @param metrics - gets the cache and resolution metrics
+     */
+    public SharedResources(Path workingPath, RunMetrics metrics) throws IOException {
+        this.workingPath = workingPath;
+        this.metrics = metrics;
+        this.resolutionCache = ResolutionCache.open(workingPath);
+        this.linkResolver = new LinkResolver(new LinkResolver.Settings(), HostHealth.fromSystemProperties(), resolutionCache, metrics);
+        this.searchBudget = SearchBudget.fromSystemProperties();
+        this.canonicalizer = URLCanonicalizer.fromSystemProperties(workingPath);
+
+        metrics.gauge("twittertracker_cache_hits", "cache", "resolution", resolutionCache::getHits);
+        metrics.gauge("twittertracker_cache_misses", "cache", "resolution", resolutionCache::getMisses);
+        metrics.gauge("twittertracker_cache_hit_ratio", "cache", "resolution", resolutionCache::getHitRatio);
+        metrics.gauge("twittertracker_search_budget_remaining", null, null, searchBudget::available);
+    }
+
+    public Path getWorkingPath() { return workingPath; }
+
+    public RunMetrics getMetrics() { return metrics; }
+
+    public ResolutionCache getResolutionCache() { return resolutionCache; }
+
+    public LinkResolver getLinkResolver() { return linkResolver; }
+
+    public SearchBudget getSearchBudget() { return searchBudget; }
+
+    public URLCanonicalizer getCanonicalizer() { return canonicalizer; }
+
+    /**
+     * The client is only created when the first search is made, so replays do not need the Twitter credentials
+     */
+    public synchronized Twitter getTwitter() {
+        if (twitter == null) {
+            twitter = new TwitterFactory().getInstance();
+        }
+        return twitter;
+    }
+
+    @Override
+    public void close() throws IOException {
+        linkResolver.close();
+        resolutionCache.close();
+    }
+}
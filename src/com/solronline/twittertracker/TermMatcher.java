@@ -0,0 +1,156 @@
+package com.solronline.twittertracker;
+
+import java.util.*;
+
+/**
+ * Case-insensitive matcher for a set of literal terms (Aho-Corasick).
+ * Built once from the term list, it then finds any of the terms in a single pass over the text,
+ * however many terms there are. Terms are taken literally, so regex characters in them have no special meaning.
+ */
+public class TermMatcher {
+
+    private final int termCount;
+    //trie transitions, per node: sorted (lower case) characters and the nodes they lead to
+    private final char[][] transitionChars;
+    private final int[][] transitionNodes;
+    private final int[] fail;
+    //length of the longest term that ends at this node or at one of its fail ancestors, 0 if none
+    private final int[] matchLength;
+
+    private TermMatcher(int termCount, char[][] transitionChars, int[][] transitionNodes, int[] fail, int[] matchLength) {
+        this.termCount = termCount;
+        this.transitionChars = transitionChars;
+        this.transitionNodes = transitionNodes;
+        this.fail = fail;
+        this.matchLength = matchLength;
+    }
+
+    /**
+     * @return the matcher, or null if there are no (non-empty) terms to match
+     */
+    public static TermMatcher compile(Collection<String> terms) {
+        List<TreeMap<Character, Integer>> children = new ArrayList<>();
+        List<Integer> termLengths = new ArrayList<>();
+        children.add(new TreeMap<>());
+        termLengths.add(0);
+
+        int termCount = 0;
+        for (String term : terms) {
+            if (term.isEmpty()) continue; //a blank line in a terms file should not match everything
+            int node = 0;
+            for (int i = 0; i < term.length(); i++) {
+                char c = Character.toLowerCase(term.charAt(i));
+                Integer next = children.get(node).get(c);
+                if (next == null) {
+                    next = children.size();
+                    children.add(new TreeMap<>());
+                    termLengths.add(0);
+                    children.get(node).put(c, next);
+                }
+                node = next;
+            }
+            termLengths.set(node, term.length());
+            termCount++;
+        }
+        if (termCount == 0) {
+            return null;
+        }
+
+        int nodeCount = children.size();
+        char[][] transitionChars = new char[nodeCount][];
+        int[][] transitionNodes = new int[nodeCount][];
+        for (int node = 0; node < nodeCount; node++) {
+            TreeMap<Character, Integer> nodeChildren = children.get(node);
+            transitionChars[node] = new char[nodeChildren.size()];
+            transitionNodes[node] = new int[nodeChildren.size()];
+            int i = 0;
+            for (Map.Entry<Character, Integer> child : nodeChildren.entrySet()) {
+                transitionChars[node][i] = child.getKey();
+                transitionNodes[node][i] = child.getValue();
+                i++;
+            }
+        }
+
+        //breadth first, so the fail target of a node is always done before the node itself
+        int[] fail = new int[nodeCount];
+        int[] matchLength = new int[nodeCount];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int child : transitionNodes[0]) {
+            queue.add(child);
+            matchLength[child] = termLengths.get(child);
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            for (int i = 0; i < transitionChars[node].length; i++) {
+                char c = transitionChars[node][i];
+                int child = transitionNodes[node][i];
+                int target = fail[node];
+                int next;
+                while ((next = step(transitionChars, transitionNodes, target, c)) < 0 && target != 0) {
+                    target = fail[target];
+                }
+                fail[child] = (next < 0) ? 0 : next;
+                int ownLength = termLengths.get(child);
+                matchLength[child] = (ownLength > 0) ? ownLength : matchLength[fail[child]];
+                queue.add(child);
+            }
+        }
+
+        return new TermMatcher(termCount, transitionChars, transitionNodes, fail, matchLength);
+    }
+
+    private static int step(char[][] transitionChars, int[][] transitionNodes, int node, char c) {
+        int i = Arrays.binarySearch(transitionChars[node], c);
+        return (i < 0) ? -1 : transitionNodes[node][i];
+    }
+
+    /**
+     * @return the first piece of the text (as written in the text) that is one of the terms, or null if there is none
+     */
+    public String find(CharSequence text) {
+        int state = 0;
+        for (int pos = 0; pos < text.length(); pos++) {
+            state = next(state, text.charAt(pos));
+            if (matchLength[state] > 0) {
+                return text.subSequence(pos + 1 - matchLength[state], pos + 1).toString();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * For matching text that arrives in pieces: the state after reading the character c in the given state.
+     * Start with state 0.
+     */
+    public int next(int state, char c) {
+        c = Character.toLowerCase(c);
+        int next;
+        while ((next = step(transitionChars, transitionNodes, state, c)) < 0 && state != 0) {
+            state = fail[state];
+        }
+        return (next < 0) ? 0 : next;
+    }
+
+    /**
+     * @return the length of the term that was just completed in this state, 0 if none was
+     */
+    public int matchLength(int state) {
+        return matchLength[state];
+    }
+
+    public boolean matches(CharSequence text) {
+        return find(text) != null;
+    }
+
+    public int getTermCount() {
+        return termCount;
+    }
+
+    public int getMaxTermLength() {
+        int max = 0;
+        for (int length : matchLength) {
+            max = Math.max(max, length);
+        }
+        return max;
+    }
+}
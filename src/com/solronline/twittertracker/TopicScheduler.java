@@ -0,0 +1,109 @@
+package com.solronline.twittertracker;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Runs the trackers of several topics in one process, one after the other, on the same {@link SharedResources}.
+ * <p>
+ * Topics come from a file with a line per topic: {@code name = search query} (an empty query replays the archive,
+ * # starts a comment). Each topic has its own directory under the working directory, named after it, with its own
+ * lastID, archive, exclusion files, seen URLs and output files; the URL cache stays in the working directory.
+ * <p>
+ * To share fairly, each round starts with the next topic, and a topic may use only its part of the searches
+ * left in the rate limit window. While a topic runs it has the whole resolution pool to itself.
+ */
+public class TopicScheduler implements Closeable {
+
+    private final SharedResources shared;
+    private final List<Tracker> trackers;
+    private final boolean topicMetrics;
+    private int firstTopic;
+
+    private TopicScheduler(SharedResources shared, List<Tracker> trackers, boolean topicMetrics) {
+        this.shared = shared;
+        this.trackers = trackers;
+        this.topicMetrics = topicMetrics;
+    }
+
+    /**
+     * Just the one search (or replay) in the working directory, as before there were topics
+     */
+    public static TopicScheduler single(SharedResources shared, String searchQuery) throws IOException {
+        Tracker tracker = new Tracker(shared.getWorkingPath(), searchQuery, shared, shared.getMetrics());
+        return new TopicScheduler(shared, Collections.singletonList(tracker), false);
+    }
+
+    public static TopicScheduler fromFile(SharedResources shared, Path topicsPath) throws IOException {
+        List<Tracker> trackers = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (String line : Files.readAllLines(topicsPath, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            int separator = line.indexOf('=');
+            String name = (separator < 0) ? "" : line.substring(0, separator).trim();
+            if (!name.matches("[A-Za-z0-9_.-]+") || name.startsWith(".")) {
+                throw new IOException("Expected 'name = search query' with a plain directory name, got: " + line);
+            }
+            if (!names.add(name.toLowerCase(Locale.ROOT))) { //two trackers on one directory would overwrite each other
+                throw new IOException("Topic '" + name + "' is listed more than once in " + topicsPath);
+            }
+            String searchQuery = line.substring(separator + 1).trim();
+            Path topicPath = shared.getWorkingPath().resolve(name);
+            Files.createDirectories(topicPath);
+            System.out.printf("Topic '%s': %s\n", name, searchQuery.isEmpty() ? "replay" : searchQuery);
+            trackers.add(new Tracker(topicPath, searchQuery.isEmpty() ? null : searchQuery, shared, new RunMetrics()));
+        }
+        if (trackers.isEmpty()) {
+            throw new IOException("No topics in " + topicsPath);
+        }
+        return new TopicScheduler(shared, trackers, true);
+    }
+
+    /**
+     * Runs a cycle of every topic; one failing topic does not stop the others
+     */
+    public void runRound() throws IOException {
+        int topicCount = trackers.size();
+        for (int i = 0; i < topicCount; i++) {
+            Tracker tracker = trackers.get((firstTopic + i) % topicCount);
+            int searchShare = Math.max(1, shared.getSearchBudget().available() / (topicCount - i));
+            if (topicCount > 1) {
+                System.out.printf("Topic %s, up to %d searches\n", tracker.getWorkingPath().getFileName(), searchShare);
+            }
+            try {
+                tracker.runCycle(searchShare);
+            } catch (IOException | RuntimeException e) {
+                if (topicCount == 1) {
+                    throw e;
+                }
+                e.printStackTrace(System.err);
+            }
+        }
+        firstTopic = (firstTopic + 1) % topicCount;
+        if (topicMetrics) {
+            shared.getMetrics().writeSnapshot(shared.getWorkingPath(), "metrics");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            for (Tracker tracker : trackers) {
+                tracker.close();
+            }
+        } finally {
+            shared.close();
+        }
+    }
+}
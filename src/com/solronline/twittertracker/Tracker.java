@@ -0,0 +1,337 @@
+package com.solronline.twittertracker;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Everything needed to track one search in one working directory.
+ * Kept alive between cycles in daemon mode, so the HTTP connection pools, the URL cache and the compiled
+ * term matchers stay warm; the exclusion files are only reloaded when they change on disk.
+ * The clients and the URL cache come from {@link SharedResources}, so several trackers (topics) can share them.
+ */
+public class Tracker implements Closeable {
+
+    private final Path workingPath;
+    private final String searchQuery;
+    private final Path rawTweetsPath;
+    private final Path lastIDPath;
+    private final Path searchGapPath;
+    private final Path tweetsPerRoundPath;
+    private final TermMatcher includeTerms;
+    private final ExclusionFile excludedHandles;
+    private final ExclusionFile excludedHosts;
+    private final ExclusionFile excludedTerms;
+    private TermMatcher excludeTerms;
+    private FilterPipeline filters;
+    private final SharedResources shared;
+    private final SeenURLIndex seenURLs;
+    private final TweetArchive archive;
+    private final RunMetrics metrics;
+    private double tweetsPerRound; //smoothed, to size the searches; kept between runs, -1 until the first search
+
+    /**
+     * @param searchQuery - if null, tweets are replayed from the archive (or the old raw tweets file) instead of searched for
+     * @param metrics - where this tracker counts its tweets; the shared ones when there is only one tracker
+     */
+    public Tracker(Path workingPath, String searchQuery, SharedResources shared, RunMetrics metrics) throws IOException {
+        this.workingPath = workingPath;
+        this.shared = shared;
+        this.metrics = metrics;
+        this.searchQuery = searchQuery;
+        this.rawTweetsPath = workingPath.resolve("rawtweets.json");
+        this.lastIDPath = workingPath.resolve("lastID.txt");
+        this.searchGapPath = workingPath.resolve("search-gap.txt");
+        this.tweetsPerRoundPath = workingPath.resolve("tweets-per-round.txt");
+        this.tweetsPerRound = getTweetsPerRound(tweetsPerRoundPath);
+        this.excludedHandles = new ExclusionFile(workingPath.resolve("excluded-handles.txt"));
+        this.excludedHosts = new ExclusionFile(workingPath.resolve("excluded-hosts.txt"));
+        this.excludedTerms = new ExclusionFile(workingPath.resolve("excluded-terms.txt"));
+
+        TermMatcher includeTerms = null;
+        if (searchQuery != null) {
+            // generate includeFilter from normal keywords in the search, as it does not seem to search text only
+            String[] terms = searchQuery.split("[ ()\"]");
+            List<String> includeTermsList = new ArrayList<>();
+            for (String term : terms) {
+                if (term.indexOf(':')>=0) continue; //filter term
+                if (term.length() == 0) continue; //empty
+                if (term.equals("OR")) continue; //it was a query operator
+
+                includeTermsList.add(term); //we got this far
+            }
+            includeTerms = TermMatcher.compile(includeTermsList);
+            if (includeTerms != null) {
+                System.out.println("Include terms: " + includeTermsList);
+            }
+        }
+        this.includeTerms = includeTerms;
+
+        this.seenURLs = Boolean.parseBoolean(System.getProperty("twittertracker.dedupURLs", "true"))
+                ? SeenURLIndex.open(workingPath)
+                : null;
+        this.archive = TweetArchive.open(workingPath);
+
+        if (seenURLs != null) {
+            metrics.gauge("twittertracker_seen_urls", null, null, seenURLs::size);
+        }
+    }
+
+    public Path getWorkingPath() {
+        return workingPath;
+    }
+
+    /**
+     * One round: get the tweets that are new since the last round, filter them and write out the results
+     */
+    public void runCycle() throws IOException {
+        runCycle(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxSearches - at most this many search requests (pages) this round, to leave the rest of the
+     *                    shared rate limit to the other topics
+     */
+    public void runCycle(int maxSearches) throws IOException {
+        metrics.increment("twittertracker_cycles_total");
+        try {
+            processNewTweets(maxSearches);
+        } finally {
+            metrics.writeSnapshot(workingPath, "metrics");
+        }
+    }
+
+    private void processNewTweets(int maxSearches) throws IOException {
+        long lastID = getLastId(lastIDPath);
+        if (lastID < 0) {
+            System.out.println("No LastID found");
+        } else {
+            System.out.printf("LastID found: '%d'\n", lastID);
+        }
+        reloadExclusions();
+
+        TweetProcessor processor = null;
+        boolean updateLastID = true;
+        long newestID = -1;
+        int newTweetsCount = 0;
+        long[] gap = getSearchGap(searchGapPath);
+        if (gap != null && gap[0] < 0) {
+            gap = null; //no lower bound, it would go through the whole search history before any new tweets
+        }
+        long[] newGap = gap;
+
+        try {
+            if (searchQuery != null) {
+                //each page is archived and processed while the next one is being fetched
+                TweetProcessor searchProcessor = processor = newProcessor();
+                SearchFetcher.PageHandler handler = page -> {
+                    archiveTweets(page.getRawTweets(), page.getIDs());
+                    searchProcessor.process(page.getTweets());
+                };
+                SearchFetcher fetcher = new SearchFetcher(shared.getTwitter(), shared.getSearchBudget(), metrics);
+                int pagesLeft = searchPages(maxSearches);
+
+                //first finish the older tweets an earlier round did not get to, then the ones since the lastID
+                if (gap != null) {
+                    System.out.printf("Continuing the search for older tweets, from %d down to %d\n", gap[1], gap[0]);
+                    SearchFetcher.Window window = fetcher.fetch(searchQuery, gap[0], gap[1], pagesLeft, handler);
+                    pagesLeft -= window.getPages();
+                    newTweetsCount += window.getTweets();
+                    if (window.isComplete()) {
+                        newGap = null;
+                    } else if (window.getOldestID() >= 0) {
+                        newGap = new long[] {gap[0], window.getOldestID() - 1};
+                    }
+                }
+                if (newGap == null && pagesLeft > 0) {
+                    SearchFetcher.Window window = fetcher.fetch(searchQuery, lastID, -1, pagesLeft, handler);
+                    newTweetsCount += window.getTweets();
+                    newestID = window.getNewestID();
+                    if (!window.isComplete() && window.getOldestID() >= 0 && lastID >= 0) {
+                        //too many new tweets for this round, the rest are fetched next time;
+                        //on the first run there is no telling where to stop, so just the newest are taken as before
+                        newGap = new long[] {lastID, window.getOldestID() - 1};
+                    }
+                }
+                tweetsPerRound = (tweetsPerRound < 0) ? newTweetsCount : 0.7 * tweetsPerRound + 0.3 * newTweetsCount;
+            } else if (!archive.isEmpty() || Files.exists(rawTweetsPath)) {
+                //replay in batches, so the archive can be much larger than the memory we have
+                int batchSize = Integer.getInteger("twittertracker.replayBatchSize", 1000);
+                Long replaySinceID = Long.getLong("twittertracker.replaySinceID");
+                Long replayMaxID = Long.getLong("twittertracker.replayMaxID");
+                if (replaySinceID != null || replayMaxID != null) {
+                    //an explicit range is a re-run of old tweets, it should not move where the next search stops
+                    updateLastID = false;
+                    lastID = (replaySinceID == null) ? -1 : replaySinceID;
+                }
+                long maxID = (replayMaxID == null) ? Long.MAX_VALUE : replayMaxID;
+                try (RawTweetReader reader = archive.isEmpty()
+                        ? new RawTweetReader(rawTweetsPath, lastID, maxID)
+                        : archive.read(lastID, maxID)) {
+                    List<Tweet> batch;
+                    while (!(batch = reader.nextBatch(batchSize)).isEmpty()) {
+                        if (processor == null) {
+                            newestID = batch.get(0).getId();
+                            processor = newProcessor();
+                        }
+                        processor.process(batch);
+                        newTweetsCount += batch.size();
+                    }
+                }
+            } else {
+                System.err.println("Did not find archived tweets on the filesystem: " + archive.getPath());
+            }
+        } catch (IOException | RuntimeException e) {
+            //the output of a failed cycle is still flushed, but the lastID stays, so those tweets are tried again
+            if (processor != null) {
+                try {
+                    processor.close();
+                } catch (IOException closeError) {
+                    e.addSuppressed(closeError);
+                }
+            }
+            throw e;
+        }
+
+        System.out.println("New tweets found: " + newTweetsCount);
+        ResolutionCache resolutionCache = shared.getResolutionCache();
+        System.out.printf("URL cache hits: %d, misses: %d\n", resolutionCache.getHits(), resolutionCache.getMisses());
+        resolutionCache.compactIfStale();
+        if (processor == null) {
+            return; //we are done this iteration
+        }
+        processor.close();
+
+        //Write out new lastID at the end, now that the output is on disk, replacing the old one in one go
+        if (updateLastID && newestID >= 0) {
+            writeAtomically(lastIDPath, String.valueOf(newestID));
+        }
+        if (newGap == null) {
+            Files.deleteIfExists(searchGapPath);
+        } else if (newGap != gap) {
+            writeAtomically(searchGapPath, newGap[0] + " " + newGap[1]);
+        }
+        if (searchQuery != null && tweetsPerRound >= 0) {
+            writeAtomically(tweetsPerRoundPath, String.valueOf(tweetsPerRound));
+        }
+
+        System.out.println("We are DONE!");
+    }
+
+    private void reloadExclusions() {
+        boolean changed = false;
+        if (excludedHandles.reloadIfChanged()) {
+            System.out.printf("Found %d excluded handles\n", excludedHandles.getEntries().size());
+            changed = true;
+        }
+        if (excludedHosts.reloadIfChanged()) {
+            System.out.printf("Found %d excluded hosts\n", excludedHosts.getEntries().size());
+        }
+        if (excludedTerms.reloadIfChanged()) {
+            excludeTerms = TermMatcher.compile(excludedTerms.getEntries());
+            if (excludeTerms != null) {
+                System.out.printf("Found %d excluded terms\n", excludeTerms.getTermCount());
+            }
+            changed = true;
+        }
+        if (changed || filters == null) {
+            //keep what was learned about the filters so far, the exclusions rarely change that much
+            filters = FilterPipeline.standard(excludedHandles.getEntries(), includeTerms, excludeTerms).withStatisticsOf(filters);
+            filters.registerMetrics(metrics);
+        }
+    }
+
+    private TweetProcessor newProcessor() throws IOException {
+        return new TweetProcessor(workingPath, filters, excludedHosts.getEntries(), shared.getLinkResolver(),
+                shared.getCanonicalizer(), seenURLs, metrics);
+    }
+
+    /**
+     * @return how many search pages to allow this round: enough for half as many tweets again as usual,
+     * plus the page that says there are no more, within the maximum and our share of the rate limit
+     */
+    private int searchPages(int maxSearches) {
+        int pages = Integer.getInteger("twittertracker.maxSearchPages", 10);
+        if (tweetsPerRound >= 0) {
+            pages = Math.min(pages, 1 + (int) Math.ceil(tweetsPerRound * 1.5 / SearchFetcher.PAGE_SIZE));
+        }
+        return Math.max(1, Math.min(pages, maxSearches));
+    }
+
+    /**
+     * A failure fails the cycle, so the lastID does not move past tweets that could not be replayed
+     */
+    private void archiveTweets(List<String> rawTweets, List<Long> rawTweetIDs) throws IOException {
+        if (rawTweets.isEmpty()) {
+            return;
+        }
+        archive.append(rawTweets, rawTweetIDs);
+        metrics.add("twittertracker_tweets_archived_total", null, null, rawTweets.size());
+    }
+
+    /**
+     * Closes what belongs to this tracker; the shared resources are closed by whoever made them
+     */
+    @Override
+    public void close() throws IOException {
+        if (seenURLs != null) {
+            seenURLs.close();
+        }
+    }
+
+    /**
+     * @return sinceID and maxID of the tweets an earlier round ran out of searches for, or null if there are none
+     */
+    private static long[] getSearchGap(Path searchGapPath) {
+        if (Files.notExists(searchGapPath)) {
+            return null;
+        }
+
+        try {
+            String[] gap = Files.readAllLines(searchGapPath).get(0).trim().split(" ");
+            return new long[] {Long.parseLong(gap[0]), Long.parseLong(gap[1])};
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return the smoothed number of new tweets per round of the earlier runs, or -1 if there were none
+     */
+    private static double getTweetsPerRound(Path tweetsPerRoundPath) {
+        if (Files.notExists(tweetsPerRoundPath)) {
+            return -1;
+        }
+
+        try {
+            return Double.parseDouble(Files.readAllLines(tweetsPerRoundPath).get(0).trim());
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    private static void writeAtomically(Path path, String content) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try(BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+            writer.write(content);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static long getLastId(Path lastIDPath) {
+        if (Files.notExists(lastIDPath)) {
+            return -1;
+        }
+
+        try {
+            String lastIDString = Files.readAllLines(lastIDPath).get(0);
+            long lastID = Long.parseLong(lastIDString);
+            return lastID;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return -1;
+        }
+    }
+}
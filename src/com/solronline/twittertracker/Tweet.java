@@ -0,0 +1,89 @@
+package com.solronline.twittertracker;
+
+import twitter4j.Status;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+import twitter4j.URLEntity;
+import twitter4j.UserMentionEntity;
+
+/**
+ * Just the parts of a tweet that the filters and the output look at.
+ * Replayed tweets are decoded straight into this from their raw JSON (see {@link TweetDecoder}),
+ * which is much cheaper than a full twitter4j {@link Status}; that is only built if {@link #getStatus()} is called.
+ */
+public class Tweet {
+
+    private final long id;
+    private final boolean retweet;
+    private final boolean truncated;
+    private final String screenName;
+    private final String text;
+    private final String[] mentionScreenNames;
+    private final String[] expandedURLs;
+    private final String rawJSON;
+    private Status status;
+
+    Tweet(long id, boolean retweet, boolean truncated, String screenName, String text,
+          String[] mentionScreenNames, String[] expandedURLs, String rawJSON, Status status) {
+        this.id = id;
+        this.retweet = retweet;
+        this.truncated = truncated;
+        this.screenName = screenName;
+        this.text = text;
+        this.mentionScreenNames = mentionScreenNames;
+        this.expandedURLs = expandedURLs;
+        this.rawJSON = rawJSON;
+        this.status = status;
+    }
+
+    /**
+     * @param rawJSON - may be null, then the status is all there is
+     */
+    public static Tweet of(Status status, String rawJSON) {
+        UserMentionEntity[] mentions = status.getUserMentionEntities();
+        String[] mentionScreenNames = new String[mentions.length];
+        for (int i = 0; i < mentions.length; i++) {
+            mentionScreenNames[i] = mentions[i].getScreenName();
+        }
+        URLEntity[] urls = status.getURLEntities();
+        String[] expandedURLs = new String[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            expandedURLs[i] = urls[i].getExpandedURL();
+        }
+        return new Tweet(status.getId(), status.isRetweet(), status.isTruncated(), status.getUser().getScreenName(),
+                status.getText(), mentionScreenNames, expandedURLs, rawJSON, status);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the JSON is not a tweet
+     */
+    public static Tweet decode(String rawJSON) {
+        return new TweetDecoder(rawJSON).decode();
+    }
+
+    public long getId() { return id; }
+
+    public boolean isRetweet() { return retweet; }
+
+    public boolean isTruncated() { return truncated; }
+
+    public String getScreenName() { return screenName; }
+
+    public String getText() { return text; }
+
+    public String[] getMentionScreenNames() { return mentionScreenNames; }
+
+    public String[] getExpandedURLs() { return expandedURLs; }
+
+    public String getRawJSON() { return rawJSON; }
+
+    /**
+     * @return the full twitter4j tweet, parsed from the raw JSON the first time it is needed
+     */
+    public Status getStatus() throws TwitterException {
+        if (status == null) {
+            status = TwitterObjectFactory.createStatus(rawJSON);
+        }
+        return status;
+    }
+}
@@ -0,0 +1,222 @@
+package com.solronline.twittertracker;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps every raw tweet ever retrieved, so they can be replayed (re-filtered) later, a range at a time.
+ * <p>
+ * The tweets (one JSON per line, as Twitter sent them) are appended to rolling segment files in the archive directory.
+ * Each append is one or more blocks, and each block is a separate gzip member, so a whole segment is still a normal
+ * .gz file (zcat works) while any one block can be decompressed on its own.
+ * A small sparse index (a line per block: segment, offset, length, lowest and highest tweet ID) is what lets a replay
+ * go straight to the blocks after the lastID, or in any ID range, without decompressing the rest.
+ * <p>
+ * A block is indexed only after it is on disk, so a crash mid-append loses at most that block.
+ */
+public class TweetArchive {
+
+    public static final String ARCHIVE_DIR = "archive";
+    public static final String INDEX_FILE = "index.tsv";
+
+    private static final int MAX_BLOCK_TWEETS = 1000;
+
+    private final Path archivePath;
+    private final Path indexPath;
+    private final long segmentBytes;
+    private final List<Block> blocks = new ArrayList<>();
+    private int segmentNumber = 1;
+
+    public TweetArchive(Path archivePath, long segmentBytes) throws IOException {
+        this.archivePath = archivePath;
+        this.indexPath = archivePath.resolve(INDEX_FILE);
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(archivePath);
+        loadIndex();
+    }
+
+    /**
+     * Opens the archive in the working directory, configured from the system properties
+     */
+    public static TweetArchive open(Path workingPath) throws IOException {
+        return new TweetArchive(workingPath.resolve(ARCHIVE_DIR),
+                Long.getLong("twittertracker.archiveSegmentMB", 64) * 1024 * 1024);
+    }
+
+    private void loadIndex() throws IOException {
+        if (Files.exists(indexPath)) {
+            for (String line : Files.readAllLines(indexPath, StandardCharsets.UTF_8)) {
+                Block block = Block.fromLine(line);
+                if (block == null) {
+                    System.err.println("Skipping unreadable archive index line: " + line);
+                    continue;
+                }
+                blocks.add(block);
+            }
+        }
+        if (!blocks.isEmpty()) {
+            Block last = blocks.get(blocks.size() - 1);
+            segmentNumber = last.segment;
+            //drop whatever a crashed run wrote after the last indexed block
+            Path segmentPath = segmentPath(last.segment);
+            if (Files.exists(segmentPath) && Files.size(segmentPath) > last.offset + last.length) {
+                try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.WRITE)) {
+                    channel.truncate(last.offset + last.length);
+                }
+            }
+        }
+        System.out.printf("Tweet archive has %d blocks in %d segments at %s\n",
+                blocks.size(), blocks.isEmpty() ? 0 : segmentNumber, archivePath);
+    }
+
+    /**
+     * Appends the raw tweets (as they came from the search, newest first)
+     * @param rawTweets - the JSON of each tweet
+     * @param ids - the ID of each tweet, in the same order
+     */
+    public synchronized void append(List<String> rawTweets, List<Long> ids) throws IOException {
+        for (int start = 0; start < rawTweets.size(); start += MAX_BLOCK_TWEETS) {
+            int end = Math.min(rawTweets.size(), start + MAX_BLOCK_TWEETS);
+            appendBlock(rawTweets.subList(start, end), ids.subList(start, end));
+        }
+    }
+
+    private void appendBlock(List<String> rawTweets, List<Long> ids) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(compressed), StandardCharsets.UTF_8)) {
+            for (String rawTweet : rawTweets) {
+                writer.write(rawTweet);
+                writer.write('\n');
+            }
+        }
+        long minID = Collections.min(ids);
+        long maxID = Collections.max(ids);
+
+        Path segmentPath = segmentPath(segmentNumber);
+        if (Files.exists(segmentPath) && Files.size(segmentPath) >= segmentBytes) {
+            segmentNumber++;
+            segmentPath = segmentPath(segmentNumber);
+            System.out.println("Starting new tweet archive segment: " + segmentPath);
+        }
+        long offset;
+        try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            offset = channel.size();
+            ByteBuffer buffer = ByteBuffer.wrap(compressed.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+            channel.force(false);
+        }
+
+        Block block = new Block(segmentNumber, offset, compressed.size(), minID, maxID, rawTweets.size());
+        Files.write(indexPath, (block.toLine() + '\n').getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        blocks.add(block);
+    }
+
+    public Path getPath() {
+        return archivePath;
+    }
+
+    public synchronized boolean isEmpty() {
+        return blocks.isEmpty();
+    }
+
+    /**
+     * Reads the tweets with sinceID &lt; ID &lt;= maxID, newest first, decompressing only the blocks that may have them
+     * @param sinceID - exclusive lower bound, e.g. the lastID of the previous run, or -1 for all
+     * @param maxID - inclusive upper bound, or Long.MAX_VALUE for all
+     */
+    public synchronized RawTweetReader read(long sinceID, long maxID) {
+        List<Block> selected = new ArrayList<>();
+        for (Block block : blocks) {
+            if (block.maxID > sinceID && block.minID <= maxID) {
+                selected.add(block);
+            }
+        }
+        //blocks of one search run are appended page by page, newest page first, so order by ID rather than position
+        selected.sort((a, b) -> Long.compare(b.maxID, a.maxID));
+        System.out.printf("Replaying %d of %d archive blocks\n", selected.size(), blocks.size());
+
+        Iterator<Block> toRead = selected.iterator();
+        InputStream decompressed = new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return toRead.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                try {
+                    return new GZIPInputStream(new ByteArrayInputStream(readBlock(toRead.next())));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+        return new RawTweetReader(new BufferedReader(new InputStreamReader(decompressed, StandardCharsets.UTF_8)),
+                sinceID, maxID);
+    }
+
+    private byte[] readBlock(Block block) throws IOException {
+        byte[] compressed = new byte[block.length];
+        try (FileChannel channel = FileChannel.open(segmentPath(block.segment), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.wrap(compressed);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, block.offset + buffer.position()) < 0) {
+                    throw new EOFException("Archive block cut short in segment " + block.segment + " at " + block.offset);
+                }
+            }
+        }
+        return compressed;
+    }
+
+    private Path segmentPath(int segment) {
+        return archivePath.resolve(String.format("tweets-%05d.jsonl.gz", segment));
+    }
+
+    /**
+     * Where one compressed block is and which tweet IDs it covers
+     */
+    private static class Block {
+        final int segment;
+        final long offset;
+        final int length;
+        final long minID;
+        final long maxID;
+        final int count;
+
+        Block(int segment, long offset, int length, long minID, long maxID, int count) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.minID = minID;
+            this.maxID = maxID;
+            this.count = count;
+        }
+
+        // segment \t offset \t length \t minID \t maxID \t count
+        String toLine() {
+            return String.valueOf(segment) + '\t' + offset + '\t' + length + '\t' + minID + '\t' + maxID + '\t' + count;
+        }
+
+        static Block fromLine(String line) {
+            String[] fields = line.split("\t");
+            if (fields.length != 6) {
+                return null;
+            }
+            try {
+                return new Block(Integer.parseInt(fields[0]), Long.parseLong(fields[1]), Integer.parseInt(fields[2]),
+                        Long.parseLong(fields[3]), Long.parseLong(fields[4]), Integer.parseInt(fields[5]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.solronline.twittertracker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pulls the few fields of a {@link Tweet} out of the raw tweet JSON in one pass, skipping over everything else
+ * (the user profile, places, media, the retweeted tweet...) without building anything for it.
+ * The fields come out as twitter4j would have them: full_text wins over text, and the text has its HTML entities
+ * unescaped; a URL without an expanded form keeps its t.co one.
+ */
+class TweetDecoder {
+
+    private static final String[] NO_STRINGS = new String[0];
+
+    private final String json;
+    private int pos;
+
+    TweetDecoder(String json) {
+        this.json = json;
+    }
+
+    Tweet decode() {
+        long id = -1;
+        boolean retweet = false;
+        boolean truncated = false;
+        String screenName = null;
+        String text = null;
+        String fullText = null;
+        String[] mentionScreenNames = NO_STRINGS;
+        String[] expandedURLs = NO_STRINGS;
+
+        beginObject();
+        String key;
+        while ((key = nextKey()) != null) {
+            switch (key) {
+                case "id":
+                    id = readLong();
+                    break;
+                case "text":
+                    text = readString();
+                    break;
+                case "full_text":
+                    fullText = readString();
+                    break;
+                case "truncated":
+                    truncated = readBoolean();
+                    break;
+                case "retweeted_status":
+                    retweet = !isNull();
+                    skipValue();
+                    break;
+                case "user":
+                    screenName = readScreenName();
+                    break;
+                case "entities":
+                    if (isNull()) {
+                        skipValue();
+                        break;
+                    }
+                    beginObject();
+                    String entityKey;
+                    while ((entityKey = nextKey()) != null) {
+                        if (entityKey.equals("user_mentions")) {
+                            mentionScreenNames = readMentions();
+                        } else if (entityKey.equals("urls")) {
+                            expandedURLs = readURLs();
+                        } else {
+                            skipValue();
+                        }
+                    }
+                    break;
+                default:
+                    skipValue();
+            }
+        }
+        if (id < 0 || screenName == null || (text == null && fullText == null)) {
+            throw new IllegalArgumentException("Not a tweet, missing id, user or text");
+        }
+        return new Tweet(id, retweet, truncated, screenName, unescapeHTML(fullText != null ? fullText : text),
+                mentionScreenNames, expandedURLs, json, null);
+    }
+
+    private String readScreenName() {
+        if (isNull()) {
+            skipValue();
+            return null;
+        }
+        String screenName = null;
+        beginObject();
+        String key;
+        while ((key = nextKey()) != null) {
+            if (key.equals("screen_name")) {
+                screenName = readString();
+            } else {
+                skipValue();
+            }
+        }
+        return screenName;
+    }
+
+    private String[] readMentions() {
+        if (isNull()) {
+            skipValue();
+            return NO_STRINGS;
+        }
+        List<String> screenNames = new ArrayList<>(2);
+        beginArray();
+        while (nextElement()) {
+            beginObject();
+            String key;
+            while ((key = nextKey()) != null) {
+                if (key.equals("screen_name")) {
+                    screenNames.add(readString());
+                } else {
+                    skipValue();
+                }
+            }
+        }
+        return screenNames.isEmpty() ? NO_STRINGS : screenNames.toArray(NO_STRINGS);
+    }
+
+    private String[] readURLs() {
+        if (isNull()) {
+            skipValue();
+            return NO_STRINGS;
+        }
+        List<String> urls = new ArrayList<>(2);
+        beginArray();
+        while (nextElement()) {
+            String url = null;
+            String expandedURL = null;
+            beginObject();
+            String key;
+            while ((key = nextKey()) != null) {
+                if (key.equals("expanded_url")) {
+                    expandedURL = readString();
+                } else if (key.equals("url")) {
+                    url = readString();
+                } else {
+                    skipValue();
+                }
+            }
+            urls.add(expandedURL != null ? expandedURL : url);
+        }
+        return urls.isEmpty() ? NO_STRINGS : urls.toArray(NO_STRINGS);
+    }
+
+    private void beginObject() {
+        expect('{');
+    }
+
+    private void beginArray() {
+        expect('[');
+    }
+
+    /**
+     * @return the next key of the current object, positioned at its value, or null at the end of the object
+     */
+    private String nextKey() {
+        skipWhitespace();
+        char c = peek();
+        if (c == '}') {
+            pos++;
+            return null;
+        }
+        if (c == ',') {
+            pos++;
+            skipWhitespace();
+        }
+        String key = readString();
+        expect(':');
+        return key;
+    }
+
+    /**
+     * @return true if the current array has another element, positioned at it
+     */
+    private boolean nextElement() {
+        skipWhitespace();
+        char c = peek();
+        if (c == ']') {
+            pos++;
+            return false;
+        }
+        if (c == ',') {
+            pos++;
+        }
+        return true;
+    }
+
+    private boolean isNull() {
+        skipWhitespace();
+        return json.startsWith("null", pos);
+    }
+
+    /**
+     * @return the string, or null for a JSON null
+     */
+    private String readString() {
+        skipWhitespace();
+        if (isNull()) {
+            pos += 4;
+            return null;
+        }
+        expect('"');
+        int start = pos;
+        while (true) { //fast path, no escapes
+            char c = charAt(pos);
+            if (c == '"') {
+                return json.substring(start, pos++);
+            }
+            if (c == '\\') {
+                break;
+            }
+            pos++;
+        }
+        StringBuilder value = new StringBuilder(pos - start + 16).append(json, start, pos);
+        while (true) {
+            char c = charAt(pos++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            char escaped = charAt(pos++);
+            switch (escaped) {
+                case 'n': value.append('\n'); break;
+                case 't': value.append('\t'); break;
+                case 'r': value.append('\r'); break;
+                case 'b': value.append('\b'); break;
+                case 'f': value.append('\f'); break;
+                case 'u':
+                    if (pos + 4 > json.length()) throw error("cut short \\u escape");
+                    value.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                    pos += 4;
+                    break;
+                default: value.append(escaped); //quote, backslash, slash
+            }
+        }
+    }
+
+    private long readLong() {
+        skipWhitespace();
+        int start = pos;
+        if (peek() == '-') pos++;
+        while (pos < json.length() && json.charAt(pos) >= '0' && json.charAt(pos) <= '9') {
+            pos++;
+        }
+        if (pos == start) {
+            throw error("expected a number");
+        }
+        try {
+            return Long.parseLong(json.substring(start, pos));
+        } catch (NumberFormatException e) {
+            throw error("expected a whole number");
+        }
+    }
+
+    private boolean readBoolean() {
+        skipWhitespace();
+        if (json.startsWith("true", pos)) {
+            pos += 4;
+            return true;
+        }
+        skipValue(); //false or null
+        return false;
+    }
+
+    /**
+     * Moves past the value at the current position, whatever it is, without decoding it
+     */
+    private void skipValue() {
+        skipWhitespace();
+        char c = peek();
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                c = charAt(pos);
+                if (c == '"') {
+                    skipString();
+                    continue;
+                }
+                if (c == '{' || c == '[') depth++;
+                else if (c == '}' || c == ']') depth--;
+                pos++;
+            } while (depth > 0);
+        } else { //number, true, false, null
+            while (pos < json.length()) {
+                c = json.charAt(pos);
+                if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) break;
+                pos++;
+            }
+        }
+    }
+
+    private void skipString() {
+        pos++; //opening quote
+        while (true) {
+            char c = charAt(pos++);
+            if (c == '"') return;
+            if (c == '\\') pos++;
+        }
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length() && json.charAt(pos) <= ' ') {
+            pos++;
+        }
+    }
+
+    private void expect(char expected) {
+        skipWhitespace();
+        if (charAt(pos) != expected) {
+            throw error("expected '" + expected + "'");
+        }
+        pos++;
+    }
+
+    private char peek() {
+        return charAt(pos);
+    }
+
+    private char charAt(int index) {
+        if (index >= json.length()) {
+            throw error("unexpected end");
+        }
+        return json.charAt(index);
+    }
+
+    private IllegalArgumentException error(String problem) {
+        return new IllegalArgumentException("Bad tweet JSON, " + problem + " at character " + pos);
+    }
+
+    /**
+     * Twitter escapes just these in the tweet text
+     */
+    static String unescapeHTML(String text) {
+        if (text.indexOf('&') < 0) {
+            return text;
+        }
+        StringBuilder unescaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '&') {
+                if (text.startsWith("&amp;", i)) {
+                    unescaped.append('&');
+                    i += 4;
+                    continue;
+                } else if (text.startsWith("&lt;", i)) {
+                    unescaped.append('<');
+                    i += 3;
+                    continue;
+                } else if (text.startsWith("&gt;", i)) {
+                    unescaped.append('>');
+                    i += 3;
+                    continue;
+                } else if (text.startsWith("&quot;", i)) {
+                    unescaped.append('"');
+                    i += 5;
+                    continue;
+                }
+            }
+            unescaped.append(c);
+        }
+        return unescaped.toString();
+    }
+}
@@ -0,0 +1,204 @@
+package com.solronline.twittertracker;
+
+import org.apache.http.client.utils.URIUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Runs batches of tweets through the exclusion filters (see {@link FilterPipeline}), resolves the URLs of the accepted ones
+ * and appends the results to the accepted and skipped tweet files.
+ * Batches are independent, so tweets can be fed in as they are read instead of all at once.
+ */
+public class TweetProcessor implements Closeable {
+
+    private final FilterPipeline filters;
+    private final HashSet<String> excludedHosts;
+    private final LinkResolver linkResolver;
+    private final URLCanonicalizer canonicalizer;
+    private final SeenURLIndex seenURLs;
+    private final RunMetrics metrics;
+    private final OutputWriter output;
+
+    /**
+     * @param filters - the per tweet filters, run before anything is resolved
+     * @param canonicalizer - cleans up the final URLs before they are checked against the seen ones and written out
+     * @param seenURLs - URLs accepted before, which are not written out again; may be null
+     */
+    public TweetProcessor(Path workingPath, FilterPipeline filters, HashSet<String> excludedHosts, LinkResolver linkResolver,
+                          URLCanonicalizer canonicalizer, SeenURLIndex seenURLs, RunMetrics metrics) throws IOException {
+        this.filters = filters;
+        this.excludedHosts = excludedHosts;
+        this.linkResolver = linkResolver;
+        this.canonicalizer = canonicalizer;
+        this.seenURLs = seenURLs;
+        this.metrics = metrics;
+        this.output = OutputWriter.open(workingPath, metrics);
+    }
+
+    /**
+     * Filters and resolves one batch of tweets, writing them out in the order given
+     */
+    public void process(List<Tweet> batch) throws IOException {
+        //First pass: filter the tweets and start resolving the URLs of the accepted ones, all at the same time.
+        //The outcomes are kept in tweet order, so the second pass can write them out just as a serial run would.
+        List<TweetOutcome> outcomes = new ArrayList<>(batch.size());
+        for (Tweet tweet : batch) {
+            TweetOutcome outcome = new TweetOutcome(tweet);
+            outcomes.add(outcome);
+            metrics.increment("twittertracker_tweets_processed_total");
+
+            if (!filters.accept(tweet, outcome)) {
+                continue;
+            }
+
+            for (String initialURL : tweet.getExpandedURLs()) {
+                String initialHostName = URIUtils.extractHost(URI.create(initialURL)).getHostName();
+                if (excludedHosts.contains(initialHostName)) { //don't even bother trying to resolve
+                    outcome.urls.add(new PendingURL(initialURL, initialHostName, null));
+                } else {
+                    outcome.urls.add(new PendingURL(initialURL, initialHostName, linkResolver.submit(initialURL)));
+                }
+            }
+        }
+
+        //Second pass: write everything out in tweet order, waiting for the resolutions as we get to them
+        for (TweetOutcome outcome : outcomes) {
+            Tweet tweet = outcome.tweet;
+            if (outcome.skipFormat != null) {
+                writeSkipped(outcome.skipReason, tweet, outcome.skipFormat, outcome.skipParams);
+                continue;
+            }
+
+            //deal with URLs
+            long tweetID = tweet.getId();
+            String screenName = tweet.getScreenName();
+            System.out.printf("Accept tweet @%s: '%s' (truncated: %s)\n", screenName, tweet.getText(), tweet.isTruncated());
+
+            for (PendingURL pendingURL : outcome.urls) {
+                System.out.println("  url: " + pendingURL.initialURL);
+                if (pendingURL.resolution == null) {
+                    writeSkipped("excluded_host_initial", tweet, "exclude due to target host (initial) '%s'", pendingURL.initialHostName);
+                    continue; //maybe another URL will work out, which will end up with same ID in both skipped and final URLs
+                }
+
+                LinkResolver.Resolution resolution = awaitResolution(pendingURL.resolution);
+                if (resolution.getSkippedHost() != null) {
+                    writeSkipped("failing_host", tweet, "skipped due to failing host '%s'", resolution.getSkippedHost());
+                    continue;
+                }
+                if (!resolution.isResolved()) {
+                    metrics.increment("twittertracker_url_resolution_errors_total");
+                    resolution.getError().printStackTrace(System.err);
+                    continue;
+                }
+
+                URI location = resolution.getFinalURI();
+                System.out.println("  final: " + location.toASCIIString());
+                System.out.println();
+
+                String hostName = URIUtils.extractHost(location).getHostName();
+                if (excludedHosts.contains(hostName)) {
+                    writeSkipped("excluded_host", tweet, "exclude due to target host '%s'", hostName);
+                    continue; //maybe another URL will work out, which will end up with same ID in both skipped and final URLs
+                }
+
+                String finalURL = location.toString();
+                String canonicalURL = canonicalizer.canonicalize(finalURL);
+                if (canonicalURL != finalURL) { //the same instance when there was nothing to clean
+                    metrics.increment("twittertracker_urls_canonicalized_total");
+                }
+
+                if (seenURLs != null) {
+                    if (!outcome.acceptedURLs.add(canonicalURL)) {
+                        continue; //the same link twice in one tweet
+                    }
+                    SeenURLIndex.Seen seen = seenURLs.checkAndAdd(canonicalizer.key(canonicalURL), tweetID);
+                    if (seen != null) {
+                        writeSkipped("duplicate_url", tweet, "exclude due to URL already seen in tweet %s on %s '%s'",
+                                String.valueOf(seen.getTweetID()), OutputWriter.DATE_FORMAT.format(Instant.ofEpochMilli(seen.getFirstSeen())), canonicalURL);
+                        continue;
+                    }
+                }
+                metrics.increment("twittertracker_urls_accepted_total");
+                System.out.println("ACCEPTED URL: " + canonicalURL);
+                System.out.println();
+                output.accepted(System.currentTimeMillis(), canonicalURL, tweetID, screenName, tweet.getText());
+            }
+        }
+    }
+
+    /**
+     * Waits for everything processed so far to be on disk, see {@link OutputWriter#sync()};
+     * only then are the accepted URLs added to the seen ones for good
+     */
+    @Override
+    public void close() throws IOException {
+        output.close();
+        if (seenURLs != null) {
+            seenURLs.flush();
+        }
+    }
+
+    /**
+     * What the first pass decided about a tweet: either why it was skipped, or the URLs being resolved for it
+     */
+    static class TweetOutcome {
+        final Tweet tweet;
+        final List<PendingURL> urls = new ArrayList<>();
+        final Set<String> acceptedURLs = new HashSet<>(2);
+        String skipReason;
+        String skipFormat;
+        String[] skipParams;
+
+        TweetOutcome(Tweet tweet) {
+            this.tweet = tweet;
+        }
+
+        /**
+         * @param reason - short name of the filter, for the metrics
+         */
+        void skip(String reason, String format, String... params) {
+            this.skipReason = reason;
+            this.skipFormat = format;
+            this.skipParams = params;
+        }
+    }
+
+    /**
+     * A URL of an accepted tweet; resolution is null if the initial host is already excluded
+     */
+    private static class PendingURL {
+        final String initialURL;
+        final String initialHostName;
+        final Future<LinkResolver.Resolution> resolution;
+
+        PendingURL(String initialURL, String initialHostName, Future<LinkResolver.Resolution> resolution) {
+            this.initialURL = initialURL;
+            this.initialHostName = initialHostName;
+            this.resolution = resolution;
+        }
+    }
+
+    private static LinkResolver.Resolution awaitResolution(Future<LinkResolver.Resolution> resolution) {
+        try {
+            return resolution.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for URL resolution", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("URL resolution failed unexpectedly", e.getCause());
+        }
+    }
+
+    private void writeSkipped(String reason, Tweet tweet, String format, String... params) throws IOException {
+        metrics.increment("twittertracker_tweets_skipped_total", "reason", reason);
+        output.skipped(System.currentTimeMillis(), tweet.getId(), reason, format, params, tweet.getText());
+    }
+}
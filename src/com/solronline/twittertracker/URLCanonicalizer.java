@@ -0,0 +1,385 @@
+package com.solronline.twittertracker;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Cleans up the final URLs before they are written out or looked up: drops tracking parameters, mobile and AMP
+ * variants of the page and the fragment, lower cases the scheme and host and drops a default port.
+ * <p>
+ * What to drop comes from a rule table, one rule per line, compiled once into lookup tables:
+ * <ul>
+ * <li>{@code param fbclid} - drop the query parameter of that name, {@code param utm_*} - of any name starting so</li>
+ * <li>{@code host-prefix m.} - drop the host prefix, unless that would leave just a top level domain</li>
+ * <li>{@code path-segment amp} - drop path segments of that name</li>
+ * <li>{@code path-suffix .amp.html .html} - replace the path ending</li>
+ * </ul>
+ * Most URLs are already clean; those are checked in one pass without allocating anything and returned as they are.
+ */
+public class URLCanonicalizer {
+
+    static final String[] DEFAULT_RULES = {
+            "param utm_*",
+            "param fbclid", "param gclid", "param gclsrc", "param dclid", "param msclkid", "param yclid", "param twclid",
+            "param igshid", "param mc_cid", "param mc_eid", "param _hsenc", "param _hsmi", "param mkt_tok",
+            "param ref", "param ref_src", "param ref_url", "param ncid", "param sr_share", "param amp",
+            "host-prefix m.", "host-prefix mobile.", "host-prefix amp.",
+            "path-segment amp",
+            "path-suffix .amp.html .html",
+    };
+
+    private final String[] paramTable; //open addressing, by case insensitive hash
+    private final String[] paramPrefixes;
+    private final String[] hostPrefixes;
+    private final String[] pathSegments;
+    private final String[] pathSuffixes;
+    private final String[] pathSuffixReplacements;
+
+    /**
+     * @throws IllegalArgumentException for a rule that is not one of the above
+     */
+    public URLCanonicalizer(List<String> rules) {
+        List<String> params = new ArrayList<>();
+        List<String> prefixes = new ArrayList<>();
+        List<String> hosts = new ArrayList<>();
+        List<String> segments = new ArrayList<>();
+        List<String> suffixes = new ArrayList<>();
+        List<String> replacements = new ArrayList<>();
+        for (String rule : rules) {
+            rule = rule.trim();
+            if (rule.isEmpty() || rule.startsWith("#")) continue;
+
+            String[] parts = rule.split("\\s+");
+            if (parts[0].equals("param") && parts.length == 2) {
+                if (parts[1].endsWith("*")) {
+                    prefixes.add(parts[1].substring(0, parts[1].length() - 1));
+                } else {
+                    params.add(parts[1]);
+                }
+            } else if (parts[0].equals("host-prefix") && parts.length == 2) {
+                hosts.add(parts[1]);
+            } else if (parts[0].equals("path-segment") && parts.length == 2) {
+                segments.add(parts[1]);
+            } else if (parts[0].equals("path-suffix") && parts.length == 3) {
+                suffixes.add(parts[1]);
+                replacements.add(parts[2]);
+            } else {
+                throw new IllegalArgumentException("Unknown URL canonicalization rule: " + rule);
+            }
+        }
+
+        int tableSize = Integer.highestOneBit(Math.max(1, params.size()) * 4);
+        paramTable = new String[tableSize];
+        for (String param : params) {
+            int slot = slot(param, 0, param.length());
+            while (paramTable[slot] != null && !paramTable[slot].equalsIgnoreCase(param)) {
+                slot = (slot + 1) & (tableSize - 1);
+            }
+            paramTable[slot] = param;
+        }
+        paramPrefixes = prefixes.toArray(new String[0]);
+        hostPrefixes = hosts.toArray(new String[0]);
+        pathSegments = segments.toArray(new String[0]);
+        pathSuffixes = suffixes.toArray(new String[0]);
+        pathSuffixReplacements = replacements.toArray(new String[0]);
+    }
+
+    /**
+     * The default rules, plus those in the twittertracker.canonicalRules file (relative to the working directory) if set
+     */
+    public static URLCanonicalizer fromSystemProperties(Path workingPath) throws IOException {
+        List<String> rules = new ArrayList<>(Arrays.asList(DEFAULT_RULES));
+        String rulesFile = System.getProperty("twittertracker.canonicalRules");
+        if (rulesFile != null) {
+            rules.addAll(Files.readAllLines(workingPath.resolve(rulesFile), StandardCharsets.UTF_8));
+        }
+        try {
+            return new URLCanonicalizer(rules);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(e.getMessage() + " in " + rulesFile);
+        }
+    }
+
+    /**
+     * @return the canonical form of the absolute URL; the same instance if it is already canonical
+     */
+    public String canonicalize(String url) {
+        int schemeEnd = url.indexOf("://");
+        if (schemeEnd <= 0) {
+            return url; //not something we know how to clean
+        }
+        int length = url.length();
+        int authorityStart = schemeEnd + 3;
+        int authorityEnd = indexOfAny(url, authorityStart, length, '/', '?', '#');
+        int pathEnd = indexOfAny(url, authorityEnd, length, '?', '#', '#');
+        int queryEnd = indexOfAny(url, pathEnd, length, '#', '#', '#');
+
+        int hostStart = url.lastIndexOf('@', authorityEnd - 1) + 1;
+        if (hostStart < authorityStart) {
+            hostStart = authorityStart;
+        }
+        if (hostStart >= authorityEnd) {
+            return url; //no host, e.g. "http://" or "http://user@/"
+        }
+        int hostEnd = (url.charAt(hostStart) == '[')
+                ? url.indexOf(']', hostStart) + 1
+                : indexOfAny(url, hostStart, authorityEnd, ':', ':', ':');
+        if (hostEnd <= hostStart || hostEnd > authorityEnd) {
+            return url;
+        }
+        boolean defaultPort = isDefaultPort(url, schemeEnd, hostEnd, authorityEnd);
+        int hostPrefix = (url.charAt(hostStart) == '[') ? 0 : strippedHostPrefix(url, hostStart, hostEnd);
+
+        if (queryEnd == length && !defaultPort && hostPrefix == 0
+                && !hasUpperCase(url, 0, schemeEnd) && !hasUpperCase(url, hostStart, hostEnd)
+                && pathIsCanonical(url, authorityEnd, pathEnd) && queryIsCanonical(url, pathEnd, queryEnd)) {
+            return url;
+        }
+
+        StringBuilder canonical = new StringBuilder(length);
+        appendLowerCase(canonical, url, 0, schemeEnd);
+        canonical.append(url, schemeEnd, hostStart);
+        appendLowerCase(canonical, url, hostStart + hostPrefix, hostEnd);
+        if (!defaultPort) {
+            canonical.append(url, hostEnd, authorityEnd);
+        }
+        appendPath(canonical, url, authorityEnd, pathEnd);
+        appendQuery(canonical, url, pathEnd, queryEnd);
+        return canonical.toString();
+    }
+
+    /**
+     * A key under which the same page always looks the same, for the caches and the duplicate checks:
+     * the canonical URL as https, without a www. host prefix and with the query parameters in order.
+     * It is not meant to be followed, as not every site answers at all of its variants.
+     * @param canonicalURL - see {@link #canonicalize(String)}
+     */
+    public String key(String canonicalURL) {
+        boolean https = canonicalURL.startsWith("https://");
+        if (!https && !canonicalURL.startsWith("http://")) {
+            return canonicalURL;
+        }
+        int hostStart = https ? "https://".length() : "http://".length();
+        boolean www = canonicalURL.startsWith("www.", hostStart);
+        int queryStart = canonicalURL.indexOf('?', hostStart);
+        boolean sorted = queryStart < 0 || paramsSorted(canonicalURL, queryStart + 1);
+        if (https && !www && sorted) {
+            return canonicalURL;
+        }
+
+        StringBuilder key = new StringBuilder(canonicalURL.length() + 1).append("https://");
+        key.append(canonicalURL, hostStart + (www ? 4 : 0), (queryStart < 0) ? canonicalURL.length() : queryStart);
+        if (queryStart >= 0) {
+            String[] params = canonicalURL.substring(queryStart + 1).split("&");
+            Arrays.sort(params);
+            key.append('?').append(String.join("&", params));
+        }
+        return key.toString();
+    }
+
+    private boolean isDefaultPort(String url, int schemeEnd, int hostEnd, int authorityEnd) {
+        if (hostEnd + 1 >= authorityEnd) {
+            return hostEnd + 1 == authorityEnd; //an empty port is as good as a default one
+        }
+        int portLength = authorityEnd - hostEnd - 1;
+        if (schemeEnd == 4 && url.regionMatches(true, 0, "http", 0, 4)) {
+            return portLength == 2 && url.startsWith("80", hostEnd + 1);
+        }
+        if (schemeEnd == 5 && url.regionMatches(true, 0, "https", 0, 5)) {
+            return portLength == 3 && url.startsWith("443", hostEnd + 1);
+        }
+        return false;
+    }
+
+    /**
+     * @return how many characters to drop from the start of the host
+     */
+    private int strippedHostPrefix(String url, int hostStart, int hostEnd) {
+        for (String prefix : hostPrefixes) {
+            if (url.regionMatches(true, hostStart, prefix, 0, prefix.length())) {
+                int nextDot = url.indexOf('.', hostStart + prefix.length());
+                if (nextDot > 0 && nextDot < hostEnd - 1) {
+                    return prefix.length();
+                }
+            }
+        }
+        return 0;
+    }
+
+    private boolean pathIsCanonical(String url, int pathStart, int pathEnd) {
+        if (pathStart == pathEnd) {
+            return false; //needs the root slash
+        }
+        for (int segmentStart = pathStart + 1; segmentStart <= pathEnd; ) {
+            int segmentEnd = indexOfAny(url, segmentStart, pathEnd, '/', '/', '/');
+            if (isDroppedSegment(url, segmentStart, segmentEnd)) {
+                return false;
+            }
+            segmentStart = segmentEnd + 1;
+        }
+        for (String suffix : pathSuffixes) {
+            if (pathEnd - pathStart >= suffix.length()
+                    && url.regionMatches(true, pathEnd - suffix.length(), suffix, 0, suffix.length())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void appendPath(StringBuilder canonical, String url, int pathStart, int pathEnd) {
+        int pathOffset = canonical.length();
+        for (int segmentStart = pathStart + 1; segmentStart <= pathEnd; ) {
+            int segmentEnd = indexOfAny(url, segmentStart, pathEnd, '/', '/', '/');
+            if (!isDroppedSegment(url, segmentStart, segmentEnd)) {
+                canonical.append('/').append(url, segmentStart, segmentEnd);
+            } else if (segmentEnd == pathEnd) {
+                canonical.append('/'); //dropped the last segment, the rest is a directory
+                break;
+            }
+            segmentStart = segmentEnd + 1;
+        }
+        if (canonical.length() == pathOffset) {
+            canonical.append('/');
+        }
+        for (int i = 0; i < pathSuffixes.length; i++) {
+            String suffix = pathSuffixes[i];
+            int suffixStart = canonical.length() - suffix.length();
+            if (suffixStart > pathOffset && canonical.substring(suffixStart).equalsIgnoreCase(suffix)) {
+                canonical.setLength(suffixStart);
+                canonical.append(pathSuffixReplacements[i]);
+                break;
+            }
+        }
+    }
+
+    private boolean isDroppedSegment(String url, int segmentStart, int segmentEnd) {
+        for (String segment : pathSegments) {
+            if (segment.length() == segmentEnd - segmentStart
+                    && url.regionMatches(true, segmentStart, segment, 0, segment.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean queryIsCanonical(String url, int queryStart, int queryEnd) {
+        if (queryStart == queryEnd) {
+            return true; //no query
+        }
+        if (queryStart + 1 == queryEnd) {
+            return false; //empty query
+        }
+        for (int paramStart = queryStart + 1; paramStart <= queryEnd; ) {
+            int paramEnd = indexOfAny(url, paramStart, queryEnd, '&', '&', '&');
+            if (paramStart == paramEnd || isDroppedParam(url, paramStart, paramEnd)) {
+                return false;
+            }
+            paramStart = paramEnd + 1;
+        }
+        return true;
+    }
+
+    private void appendQuery(StringBuilder canonical, String url, int queryStart, int queryEnd) {
+        char separator = '?';
+        for (int paramStart = queryStart + 1; paramStart < queryEnd; ) {
+            int paramEnd = indexOfAny(url, paramStart, queryEnd, '&', '&', '&');
+            if (paramStart < paramEnd && !isDroppedParam(url, paramStart, paramEnd)) {
+                canonical.append(separator).append(url, paramStart, paramEnd);
+                separator = '&';
+            }
+            paramStart = paramEnd + 1;
+        }
+    }
+
+    private boolean isDroppedParam(String url, int paramStart, int paramEnd) {
+        int nameEnd = indexOfAny(url, paramStart, paramEnd, '=', '=', '=');
+        int nameLength = nameEnd - paramStart;
+        for (int slot = slot(url, paramStart, nameEnd); paramTable[slot] != null; slot = (slot + 1) & (paramTable.length - 1)) {
+            String param = paramTable[slot];
+            if (param.length() == nameLength && url.regionMatches(true, paramStart, param, 0, nameLength)) {
+                return true;
+            }
+        }
+        for (String prefix : paramPrefixes) {
+            if (nameLength >= prefix.length() && url.regionMatches(true, paramStart, prefix, 0, prefix.length())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int slot(String value, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + Character.toLowerCase(value.charAt(i));
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash & (paramTable.length - 1);
+    }
+
+    /**
+     * @return true if the query parameters are already in the order the key puts them in
+     */
+    private static boolean paramsSorted(String url, int queryStart) {
+        int previousStart = -1;
+        int previousEnd = -1;
+        for (int paramStart = queryStart; paramStart <= url.length(); ) {
+            int paramEnd = indexOfAny(url, paramStart, url.length(), '&', '&', '&');
+            if (previousStart >= 0 && compare(url, previousStart, previousEnd, paramStart, paramEnd) > 0) {
+                return false;
+            }
+            previousStart = paramStart;
+            previousEnd = paramEnd;
+            paramStart = paramEnd + 1;
+        }
+        return true;
+    }
+
+    private static int compare(String value, int start, int end, int otherStart, int otherEnd) {
+        int length = Math.min(end - start, otherEnd - otherStart);
+        for (int i = 0; i < length; i++) {
+            int difference = value.charAt(start + i) - value.charAt(otherStart + i);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return (end - start) - (otherEnd - otherStart);
+    }
+
+    /**
+     * @return the position of the first of the characters from start, or end if there is none before it
+     */
+    private static int indexOfAny(String value, int start, int end, char c1, char c2, char c3) {
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c == c1 || c == c2 || c == c3) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private static boolean hasUpperCase(String value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void appendLowerCase(StringBuilder builder, String value, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            builder.append((c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c);
+        }
+    }
+}
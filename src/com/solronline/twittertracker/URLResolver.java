@@ -3,21 +3,77 @@ package com.solronline.twittertracker;
 import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 
+/**
+ * Goes through the accepted tweets file, follows each URL to its final page and checks the page for keywords.
+ * Lines are fetched by a pool of workers (politely, see {@link HostPermits}), but written out in input order.
+ * Timeouts, redirect limits and the failing host circuit breaker are the same as for {@link LinkResolver}.
+ * Progress is checkpointed next to the output file, so an interrupted run picks up where it stopped;
+ * the checkpoint is removed once the whole input is done.
+ * <p>
+ * Optionally the text of every page is fingerprinted, and pages that are near duplicates of a page seen before
+ * (the same article under another URL) get that first URL in an extra last column, see {@link PageFingerprintIndex}.
+ */
 public class URLResolver {
 
     private static final int KEYWORD_ARGS_OFFSET = 3;
+    private static final int CHECKPOINT_EVERY = 100;
+
+    private final ResolutionCache resolutionCache;
+    private final KeywordScanner keywordScanner;
+    private final HostPermits hostPermits;
+    private final HostHealth hostHealth;
+    private final LinkResolver.Settings settings;
+    private final RunMetrics metrics;
+    private final boolean fingerprintPages;
+
+    private URLResolver(ResolutionCache resolutionCache, KeywordScanner keywordScanner, LinkResolver.Settings settings,
+                        RunMetrics metrics, boolean fingerprintPages) {
+        this.resolutionCache = resolutionCache;
+        this.metrics = metrics;
+        this.fingerprintPages = fingerprintPages;
+        this.keywordScanner = keywordScanner;
+        this.settings = settings;
+        this.hostPermits = new HostPermits(settings.getThreadsPerHost());
+        this.hostHealth = HostHealth.fromSystemProperties();
+    }
 
     public static void main(String[] args) throws IOException {
 
         File inputFile = new File(args[0]);
-        BufferedReader reader = new BufferedReader(new FileReader(inputFile));
         File outputFile = new File(inputFile.getParent(), args[1]);
-        BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile));
-        System.out.println("Write processed content to: " + outputFile);
         File errorFile = new File(inputFile.getParent(), args[2]);
-        BufferedWriter errorWriter = new BufferedWriter(new FileWriter(errorFile));
+        Path checkpointPath = new File(inputFile.getParent(), args[1] + ".checkpoint").toPath();
+
+        //resume after the last checkpoint, dropping anything written after it
+        long linesDone = 0;
+        if (Files.exists(checkpointPath)) {
+            String[] checkpoint = new String(Files.readAllBytes(checkpointPath), StandardCharsets.UTF_8).trim().split(" ");
+            linesDone = Long.parseLong(checkpoint[0]);
+            truncate(outputFile, Long.parseLong(checkpoint[1]));
+            truncate(errorFile, Long.parseLong(checkpoint[2]));
+            System.out.printf("Resuming after line %d\n", linesDone);
+        }
+        boolean append = linesDone > 0;
+        BufferedReader reader = new BufferedReader(new FileReader(inputFile));
+        BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile, append));
+        System.out.println("Write processed content to: " + outputFile);
+        BufferedWriter errorWriter = new BufferedWriter(new FileWriter(errorFile, append));
+
+        ResolutionCache resolutionCache = ResolutionCache.open(inputFile.getAbsoluteFile().getParentFile().toPath());
 
         String[] keywords = new String[args.length-KEYWORD_ARGS_OFFSET];
         //The rest of args contain keywords, lower case them to
@@ -25,118 +81,317 @@ public class URLResolver {
             System.out.printf("Looking for keyword: '%s'\n", args[i]);
             keywords[i] = args[i+KEYWORD_ARGS_OFFSET].toLowerCase();
         }
+        KeywordScanner keywordScanner = new KeywordScanner(Arrays.asList(keywords),
+                Long.getLong("twittertracker.pageByteCap", 2 * 1024 * 1024));
 
+        LinkResolver.Settings settings = new LinkResolver.Settings();
+        int threads = settings.getThreads();
+        long maxLines = Long.getLong("twittertracker.maxLines", Long.MAX_VALUE);
+        RunMetrics metrics = new RunMetrics();
+        metrics.gauge("twittertracker_cache_hits", "cache", "resolution", resolutionCache::getHits);
+        metrics.gauge("twittertracker_cache_misses", "cache", "resolution", resolutionCache::getMisses);
+        metrics.gauge("twittertracker_cache_hit_ratio", "cache", "resolution", resolutionCache::getHitRatio);
+        PageFingerprintIndex pageFingerprints = Boolean.getBoolean("twittertracker.pageFingerprints")
+                ? PageFingerprintIndex.open(inputFile.getAbsoluteFile().getParentFile().toPath()) : null;
+        URLResolver resolver = new URLResolver(resolutionCache, keywordScanner, settings, metrics, pageFingerprints != null);
+        HttpURLConnection.setFollowRedirects(false);
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        boolean completed = false;
+        try {
+            for (long skipped = 0; skipped < linesDone; skipped++) {
+                if (reader.readLine() == null) { break; }
+            }
 
-        for (int i=0; i< 10; i++) {
-            String line = reader.readLine();
-            if (line == null) { break;} //we are done
+            //keep a few lines per worker in flight, and write them out strictly in the order they were read
+            ArrayDeque<Future<LineResult>> inFlight = new ArrayDeque<>();
+            long linesDoneAtStart = linesDone;
+            long linesRead = linesDone;
+            while (true) {
+                //the cap is per run, counted from where this run resumed
+                String line = (linesRead - linesDoneAtStart < maxLines) ? reader.readLine() : null;
+                if (line != null) {
+                    linesRead++;
+                    inFlight.add(workers.submit(() -> resolver.processLine(line)));
+                    if (inFlight.size() < threads * 4) { continue; }
+                }
+                if (inFlight.isEmpty()) { break; } //we are done
 
+                LineResult result = awaitResult(inFlight.poll());
+                System.out.print(result.log);
+                if (result.output != null) {
+                    writer.write(result.output);
+                    if (pageFingerprints != null) {
+                        //checked here rather than on the workers, so the first URL of an article is the first one in the input
+                        String firstURL = (result.fingerprint == 0) ? null : pageFingerprints.checkAndAdd(result.fingerprint, result.finalURL);
+                        if (firstURL != null) {
+                            System.out.printf("    DUPLICATE of '%s'\n", firstURL);
+                            metrics.increment("twittertracker_duplicate_pages_total");
+                        }
+                        writer.write('\t');
+                        writer.write((firstURL == null) ? "" : firstURL);
+                    }
+                    writer.newLine();
+                } else {
+                    errorWriter.write(result.error);
+                    errorWriter.newLine();
+                }
+                linesDone++;
+                if (linesDone % CHECKPOINT_EVERY == 0) {
+                    if (pageFingerprints != null) {
+                        pageFingerprints.flush();
+                    }
+                    writeCheckpoint(checkpointPath, linesDone, writer, outputFile, errorWriter, errorFile);
+                    metrics.writeSnapshot(outputFile.getAbsoluteFile().getParentFile().toPath(), "urlresolver-metrics");
+                }
+            }
+
+            if (pageFingerprints != null) {
+                pageFingerprints.close();
+            }
+            if (reader.readLine() == null) {
+                Files.deleteIfExists(checkpointPath); //all done, next run starts from scratch
+            } else {
+                writeCheckpoint(checkpointPath, linesDone, writer, outputFile, errorWriter, errorFile);
+            }
+            writer.close();
+            errorWriter.close();
+            reader.close();
+            metrics.writeSnapshot(outputFile.getAbsoluteFile().getParentFile().toPath(), "urlresolver-metrics");
+            resolutionCache.close();
+            completed = true;
+        } finally {
+            //the workers are not daemon threads, and would keep the JVM alive after an error
+            workers.shutdownNow();
+            if (!completed) {
+                closeQuietly(pageFingerprints, writer, errorWriter, reader, resolutionCache);
+            }
+        }
+    }
+
+    /**
+     * Resolves one line of the accepted tweets file; runs on a worker thread, so it only logs into its result
+     */
+    private LineResult processLine(String line) {
+        ByteArrayOutputStream logBytes = new ByteArrayOutputStream();
+        PrintStream log = new PrintStream(logBytes, true);
+        URL trackedURL = null;
+        String originalURL = null;
+        boolean resolved = false; //once the redirects are followed, a failure is about the page, not the link
+        try {
             String[] elements = line.split("[\t]");
-            String originalURL = elements[1]; //need to reprocess the file to have tab not space after date
+            originalURL = elements[1]; //need to reprocess the file to have tab not space after date
 
-            System.out.println();
-            System.out.printf("Original URL      : '%s'\n", originalURL);
+            log.println();
+            log.printf("Original URL      : '%s'\n", originalURL);
             int resCode = -1;
-            URL trackedURL = new URL(originalURL);
-            HttpURLConnection.setFollowRedirects(false);
+            trackedURL = new URL(originalURL);
 
-            try {
-                HttpURLConnection connection = null;
-                while(true) {
+            //if we followed this link before, go straight to where it ended up (or report why it failed)
+            ResolutionCache.Entry cached = resolutionCache.get(originalURL);
+            if (cached != null && cached.isFailure()) {
+                log.printf("    ERROR processing '%s' due to cached failure '%s'\n", trackedURL, cached.getError());
+                metrics.increment("twittertracker_lines_total", "result", "error");
+                return LineResult.error(logBytes, line + '\t' + cached.getError());
+            }
+            if (cached != null) {
+                trackedURL = new URL(cached.getFinalURL());
+                log.printf("    Cached final URL: '%s'\n", trackedURL);
+            }
+            List<String> redirects = new ArrayList<>();
+
+            HttpURLConnection connection = null;
+            String connectedHost;
+            String originalHost = trackedURL.getHost();
+            long deadline = System.currentTimeMillis() + settings.getRequestDeadlineMillis();
+            long resolutionStart = System.nanoTime();
+            long hopStart;
+            while(true) {
+                connectedHost = trackedURL.getHost();
+                hopStart = System.nanoTime();
+                if (!hostHealth.allows(connectedHost)) {
+                    log.printf("    SKIPPED '%s' due to failing host '%s'\n", trackedURL, connectedHost);
+                    metrics.increment("twittertracker_lines_total", "result", "failing_host");
+                    return LineResult.error(logBytes, line + '\t' + "skipped due to failing host " + connectedHost);
+                }
+                hostPermits.acquire(connectedHost);
+                try {
                     connection = (HttpURLConnection) trackedURL.openConnection();
+                    connection.setConnectTimeout(settings.getConnectTimeoutMillis());
+                    connection.setReadTimeout(settings.getReadTimeoutMillis());
                     connection.setRequestProperty("Accept-Encoding", "gzip");
                     connection.connect();
                     resCode = connection.getResponseCode();
-                    if (!(
-                            resCode == HttpURLConnection.HTTP_SEE_OTHER ||
-                                    resCode == HttpURLConnection.HTTP_MOVED_PERM ||
-                                    resCode == HttpURLConnection.HTTP_MOVED_TEMP)) {
+                } catch (IOException | RuntimeException e) {
+                    hostPermits.release(connectedHost);
+                    hostHealth.recordFailure(connectedHost);
+                    throw e;
+                }
+                if (resCode >= 500) {
+                    hostHealth.recordFailure(connectedHost);
+                } else {
+                    hostHealth.recordSuccess(connectedHost);
+                }
+                if (!(
+                        resCode == HttpURLConnection.HTTP_SEE_OTHER ||
+                                resCode == HttpURLConnection.HTTP_MOVED_PERM ||
+                                resCode == HttpURLConnection.HTTP_MOVED_TEMP)) {
 
-                        //we are done, whether error or ok
-                        break;
-                    }
-                    String location = connection.getHeaderField("Location");
-                    if (location.startsWith("/")) {
-                        location = trackedURL.getProtocol() + "://" + trackedURL.getHost() + location;
-                    }
-                    trackedURL = new URL(location);
-                    System.out.printf("    Redirected URL: '%s'\n", trackedURL);
+                    //we are done, whether error or ok; keep the host permit until the page is read
+                    break;
+                }
+                String location = connection.getHeaderField("Location");
+                try {
+                    connection.getInputStream().close(); //hands the connection back to the keep-alive cache
+                } catch (IOException e) {
+                    //no body to speak of, nothing to hand back
+                }
+                hostPermits.release(connectedHost);
+                if (redirects.size() >= settings.getMaxRedirects()) {
+                    throw new IOException("Too many redirects: " + redirects.size());
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Deadline passed while following redirects");
+                }
+                if (location.startsWith("/")) {
+                    location = trackedURL.getProtocol() + "://" + trackedURL.getHost() + location;
+                }
+                trackedURL = new URL(location);
+                redirects.add(location);
+                log.printf("    Redirected URL: '%s'\n", trackedURL);
+            }
+            resolved = true;
+            metrics.observeSince("twittertracker_url_resolution_seconds", "host", metrics.hostLabel(originalHost), resolutionStart);
+
+            boolean hasKeyword = false;
+            PageFingerprint fingerprint = fingerprintPages ? new PageFingerprint() : null;
+            try {
+                if (cached == null || !redirects.isEmpty()) {
+                    resolutionCache.put(ResolutionCache.Entry.resolved(originalURL, trackedURL.toExternalForm(), redirects, resCode));
                 }
 
                 String contentType = connection.getContentType();
                 boolean isCompressed = "gzip".equals(connection.getContentEncoding());
-                System.out.printf("    Connected URL : '%s' (Content-Type: '%s'; Compressed: %b)\n", connection.getURL(), contentType, isCompressed);
+                log.printf("    Connected URL : '%s' (Content-Type: '%s'; Compressed: %b)\n", connection.getURL(), contentType, isCompressed);
 
-                boolean hasKeyword = false;
-
-                //label to jump to:
-                keywordMatch:
-                if (contentType.contains("text/html")) {
+                if (contentType != null && contentType.contains("text/html")) {
 
                     try (
                             InputStream is = connection.getInputStream();
-                            InputStream fullIS = isCompressed?(new GZIPInputStream(is)): is;
-                            InputStreamReader inputStreamReader = new InputStreamReader(fullIS);
-                            BufferedReader contentReader = new BufferedReader(inputStreamReader)) {
-                        String contentLine;
-                        while ((contentLine = contentReader.readLine()) != null) {
-
-                            String contentLineLC = contentLine.toLowerCase();
-                            for (String keyword : keywords) {
-                                int keywordPos = contentLineLC.indexOf(keyword);
-                                if (keywordPos == -1) {
-                                    continue;
-                                }
-
-                                int keywordEndPos = keywordPos + keyword.length();
-                                StringBuffer annotatedLine = new StringBuffer();
-                                annotatedLine.append(contentLine.substring(0, keywordPos));
-                                annotatedLine.append("[[[");
-                                annotatedLine.append(contentLine.substring(keywordPos, keywordEndPos));
-                                annotatedLine.append("]]]");
-                                annotatedLine.append(contentLine.substring(keywordEndPos));
-                                System.out.printf("    Found keyword '%s' in text '%s'\n", keyword, annotatedLine);
-
-                                hasKeyword = true;
-                                break keywordMatch;
-                            }
+                            InputStream fullIS = isCompressed?(new GZIPInputStream(is)): is) {
+                        KeywordScanner.Match match = keywordScanner.scan(fullIS, KeywordScanner.charsetOf(contentType), fingerprint, deadline);
+                        if (match != null) {
+                            log.printf("    Found keyword '%s' in text '%s'\n", match.getKeyword(), match.getAnnotatedText());
+                            hasKeyword = true;
                         }
                     }
-                } //end of keyword match
-                if (!hasKeyword) {
-                    System.out.println("    KEYWORDS NOT FOUND");
-                }
-                StringBuffer writeLine = new StringBuffer();
-                writeLine
-                        .append(elements[0]) //date-time
-                        .append('\t')
-                        .append(elements[1]) // original URL
-                        .append('\t')
-                        .append(trackedURL.toExternalForm()) //final URL
-                        .append('\t')
-                        .append(hasKeyword?"KeywordMatch":"KeywordMissing")
-                        .append('\t')
-                        .append(elements[2]) // Twitter message ID
-                        .append('\t')
-                        .append("https://twitter.com/zzz/status/").append(elements[2]) // Twitter URL, zzz will be normalized
-                        ;
-
-                for (int eIdx=3; eIdx< elements.length; eIdx++) {
-                    writeLine.append('\t').append(elements[eIdx]);
                 }
-                writer.append(writeLine.toString());
-                writer.newLine();
+            } finally {
+                hostPermits.release(connectedHost);
+                metrics.observeSince("twittertracker_page_fetch_seconds", "host", metrics.hostLabel(connectedHost), hopStart);
+            }
+            metrics.increment("twittertracker_lines_total", "result", hasKeyword ? "keyword_match" : "keyword_missing");
+            if (!hasKeyword) {
+                log.println("    KEYWORDS NOT FOUND");
+            }
+            StringBuilder writeLine = new StringBuilder();
+            writeLine
+                    .append(elements[0]) //date-time
+                    .append('\t')
+                    .append(elements[1]) // original URL
+                    .append('\t')
+                    .append(trackedURL.toExternalForm()) //final URL
+                    .append('\t')
+                    .append(hasKeyword?"KeywordMatch":"KeywordMissing")
+                    .append('\t')
+                    .append(elements[2]) // Twitter message ID
+                    .append('\t')
+                    .append("https://twitter.com/zzz/status/").append(elements[2]) // Twitter URL, zzz will be normalized
+                    ;
+
+            for (int eIdx=3; eIdx< elements.length; eIdx++) {
+                writeLine.append('\t').append(elements[eIdx]);
+            }
+            return LineResult.output(logBytes, writeLine.toString(), trackedURL.toExternalForm(),
+                    (fingerprint == null) ? 0 : fingerprint.value());
+        } catch (IOException | RuntimeException e) {
+            log.printf("    ERROR processing '%s' due to '%s'\n", trackedURL, e.getMessage());
+            metrics.increment("twittertracker_lines_total", "result", "error");
+            if (originalURL != null && e instanceof IOException && !resolved) {
+                resolutionCache.put(ResolutionCache.Entry.failed(originalURL, e.getMessage()));
+            }
+            return LineResult.error(logBytes, line + '\t' + e.getMessage());
+        }
+    }
+
+    private static void closeQuietly(Closeable... closeables) {
+        for (Closeable closeable : closeables) {
+            if (closeable == null) continue;
+            try {
+                closeable.close();
             } catch (IOException e) {
-                System.out.printf("    ERROR processing '%s' due to '%s'\n", trackedURL, e.getMessage());
-                errorWriter.write(line);
-                errorWriter.write('\t');
-                errorWriter.write(e.getMessage());
-                errorWriter.newLine();
+                e.printStackTrace(System.err);
             }
+        }
+    }
+
+    private static LineResult awaitResult(Future<LineResult> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a line to be processed");
+        } catch (ExecutionException e) {
+            throw new IOException("Line processing failed unexpectedly", e.getCause());
+        }
+    }
+
+    /**
+     * Records how many input lines are done and how long the output files were at that point.
+     * Written to a temporary file first, so a crash never leaves half a checkpoint behind.
+     */
+    private static void writeCheckpoint(Path checkpointPath, long linesDone,
+                                        BufferedWriter writer, File outputFile,
+                                        BufferedWriter errorWriter, File errorFile) throws IOException {
+        writer.flush();
+        errorWriter.flush();
+        String checkpoint = linesDone + " " + outputFile.length() + " " + errorFile.length();
+        Path tempPath = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        Files.write(tempPath, checkpoint.getBytes(StandardCharsets.UTF_8));
+        Files.move(tempPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        if (file.exists() && file.length() > length) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(length);
+            }
+        }
+    }
+
+    /**
+     * What became of one input line: the processed line or the error line, plus what to print about it
+     */
+    private static class LineResult {
+        final String log;
+        final String output;
+        final String error;
+        final String finalURL;
+        final long fingerprint; //0 if the page was not fingerprinted
+
+        private LineResult(ByteArrayOutputStream log, String output, String error, String finalURL, long fingerprint) {
+            this.log = log.toString();
+            this.output = output;
+            this.error = error;
+            this.finalURL = finalURL;
+            this.fingerprint = fingerprint;
+        }
+
+        static LineResult output(ByteArrayOutputStream log, String output, String finalURL, long fingerprint) {
+            return new LineResult(log, output, null, finalURL, fingerprint);
+        }
 
+        static LineResult error(ByteArrayOutputStream log, String error) {
+            return new LineResult(log, null, error, null, 0);
         }
-        writer.close();
-        errorWriter.close();
-        reader.close();
     }
 }